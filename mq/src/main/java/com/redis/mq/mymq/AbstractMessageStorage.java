@@ -0,0 +1,699 @@
+package com.redis.mq.mymq;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.util.SafeEncoder;
+
+/**
+ * @author: xushu
+ * @date: 2018/10/18 11:20
+ * @description: 通过lua脚本发布消息的存储引擎.脚本一次性预留一段连续的消息id并写入这一批消息,
+ * 最后向通知频道发送主题名唤醒等待中的消费者,返回第一条消息的id.
+ * 各引擎只提供写入消息的lua函数store(messages, seconds),发布脚本与延迟消息的转移脚本共用同一个函数
+ */
+abstract class AbstractMessageStorage implements MessageStorage {
+
+    private static Logger log = LoggerFactory.getLogger(AbstractMessageStorage.class);
+
+    protected static final String TOPIC_COUNT_CACHETYPE = "key_count";
+    protected static final String TOPIC_SUBSCRIBERS_CACHETYPE = "key_subscribers";
+    protected static final String TOPIC_RETENTION_CACHETYPE = "key_retention";
+    protected static final String TOPIC_DELAYED_CACHETYPE = "key_delayed";
+    protected static final String TOPIC_RETRY_CACHETYPE = "key_retry";
+    protected static final String TOPIC_INFLIGHT_CACHETYPE = "key_inflight";
+    protected static final String TOPIC_SUBSCRIBER_REGISTRY_CACHETYPE = "key_subscriber_registry";
+    /**
+     * KEYS[1] 主题总数key, KEYS[2] 订阅方offset key.读取主题总数和订阅方offset,
+     * 订阅方第一次读取时从最新的消息开始,与getLastReadMessage一致
+     */
+    protected static final String OFFSET_SCRIPT =
+        "local size = tonumber(redis.call('GET', KEYS[1]) or 0) "
+            + "local offset = redis.call('GET', KEYS[2]) "
+            + "if offset then offset = tonumber(offset) "
+            + "else offset = size - 1 redis.call('SET', KEYS[2], offset) end ";
+    /**
+     * 读取脚本的结尾,result为 {剩余未读条数, id, 消息, id, 消息 ...}.
+     * 传入KEYS[3] 处理中消息zset时,以ARGV最后一个参数(确认期限)为score记录读取到的id,与推进offset在同一个脚本中
+     */
+    protected static final String READ_RESULT =
+        "if KEYS[3] then "
+            + "local args = {} "
+            + "for i = 2, #result, 2 do args[#args + 1] = ARGV[#ARGV] args[#args + 1] = result[i] end "
+            + "if #args > 0 then redis.call('ZADD', KEYS[3], unpack(args)) end "
+            + "end "
+            + "return result";
+    /**
+     * KEYS[1..n] 订阅方offset key, KEYS[n+1..2n] 对应订阅方的处理中消息zset.
+     * 返回每个订阅方的offset,还没有初始化offset的订阅方为false.
+     * 确认模式下读取即推进offset,offset之前还有没确认的消息,取处理中最小id - 1,清理消息时不会删除它们.
+     * 处理中消息zset的score是确认期限不是id,需要遍历,它的大小受消费者并发度限制
+     */
+    private static final String OFFSETS_SCRIPT =
+        "local n = #KEYS / 2 "
+            + "local result = {} "
+            + "for i = 1, n do "
+            + "local offset = redis.call('GET', KEYS[i]) "
+            + "if offset then "
+            + "offset = tonumber(offset) "
+            + "for _, id in ipairs(redis.call('ZRANGE', KEYS[n + i], 0, -1)) do "
+            + "offset = math.min(offset, tonumber(id) - 1) "
+            + "end "
+            + "end "
+            + "result[i] = offset or false "
+            + "end "
+            + "return result";
+    /**
+     * KEYS同OFFSET_SCRIPT.返回未读消息条数
+     */
+    private static final String UNREAD_SCRIPT = OFFSET_SCRIPT
+        + "return size - offset";
+    /**
+     * 每次读取脚本最多跳过的已过期消息段数,避免一次脚本阻塞redis太久
+     */
+    protected static final int READ_SCAN_LIMIT = 10;
+    /**
+     * 每次读取脚本最多读取的消息条数,脚本中命令的参数个数受lua栈大小限制
+     */
+    private static final int READ_BATCH_LIMIT = 1000;
+    /**
+     * 订阅方offset默认不过期
+     */
+    protected static final int DEFALUT_EXPIRETIME = 0;
+    /**
+     * 批量发布时每次脚本调用写入的消息条数,避免单次脚本阻塞redis太久
+     */
+    private static final int PUBLISH_BATCH_SIZE = 500;
+    /**
+     * 删除消息时每次命令删除的id个数
+     */
+    private static final int TRIM_BATCH_SIZE = 500;
+    /**
+     * 每次trim最多删除的id个数,积压很多时分多次删除
+     */
+    private static final int MAX_TRIM_PER_CALL = 100000;
+    /**
+     * 编码好的通知频道,作为发布脚本的参数
+     */
+    protected static final byte[] NOTIFY_CHANNEL = SafeEncoder.encode(MessageNotifier.CHANNEL);
+    /**
+     * 延迟消息成员的唯一前缀长度.成员为 前缀 + 过期时间 + ':' + 消息,内容相同的延迟消息不会互相覆盖
+     */
+    private static final int DELAYED_TOKEN_LENGTH = 16;
+
+    /**
+     * 主题,用于唤醒等待该主题的消费者
+     */
+    protected final String topic;
+    protected final byte[] topicBytes;
+    /**
+     * 分区
+     */
+    protected final int partition;
+    /**
+     * 分区在redis中的主题名,分区有独立的主题总数和消息key
+     */
+    protected final String partitionTopic;
+    /**
+     * 主题总数队列,也用于分配消息id
+     */
+    protected final RedisQueue countRedisQueue;
+    /**
+     * 已删除到的消息id
+     */
+    protected final RedisQueue retentionRedisQueue;
+    /**
+     * 延迟消息 成员 -> 到期时间(毫秒)
+     */
+    protected final RedisQueue delayedRedisQueue;
+    /**
+     * 订阅方offset的公共前缀,用于读取所有订阅方的offset
+     */
+    private final RedisQueue subscribersPrefixRedisQueue;
+    /**
+     * 订阅方登记set,订阅方第一次使用offset之前登记,清理消息时读取这个set,不必扫描整个keyspace
+     */
+    private final RedisQueue registryRedisQueue;
+    /**
+     * 当前进程已登记成功的订阅方
+     */
+    private final Set<String> registered = ConcurrentHashMap.newKeySet();
+    /**
+     * 是否已把登记set出现之前的订阅方补登记,每个进程只扫描一次
+     */
+    private volatile boolean registryMigrated;
+    /**
+     * 按订阅方缓存的队列,同一个存储被多个线程共享时不必每次调用都创建
+     */
+    private final Map<String, RedisQueue> subscribersRedisQueues = new ConcurrentHashMap<>();
+    private final Map<String, RedisQueue> inflightRedisQueues = new ConcurrentHashMap<>();
+    private final Map<String, RedisQueue> retryRedisQueues = new ConcurrentHashMap<>();
+
+    protected AbstractMessageStorage(String topic, int partition) {
+        this.topic = topic;
+        this.topicBytes = SafeEncoder.encode(topic);
+        this.partition = partition;
+        this.partitionTopic = TopicPartitions.partitionTopic(topic, partition);
+        this.countRedisQueue = new RedisQueue(partitionTopic, TOPIC_COUNT_CACHETYPE);
+        this.retentionRedisQueue = new RedisQueue(partitionTopic, TOPIC_RETENTION_CACHETYPE);
+        this.delayedRedisQueue = new RedisQueue(partitionTopic, TOPIC_DELAYED_CACHETYPE);
+        this.subscribersPrefixRedisQueue = new RedisQueue(partitionTopic, TOPIC_SUBSCRIBERS_CACHETYPE);
+        this.registryRedisQueue = new RedisQueue(partitionTopic, TOPIC_SUBSCRIBER_REGISTRY_CACHETYPE);
+    }
+
+    /**
+     * 由写入函数生成发布脚本.ARGV[argBase + 1] 过期时间, ARGV[argBase + 2...] 消息
+     * @param storeFunction 定义store(messages, seconds)的lua代码,返回第一条消息的id
+     * @param argBase 通知频道、主题和引擎参数的个数
+     */
+    protected static String publishScript(String storeFunction, int argBase) {
+        return storeFunction
+            + "local first = store({unpack(ARGV, " + (argBase + 2) + ")}, tonumber(ARGV[" + (argBase + 1) + "])) "
+            + "redis.call('PUBLISH', ARGV[1], ARGV[2]) "
+            + "return first";
+    }
+
+    /**
+     * 由写入函数生成延迟消息的转移脚本.KEYS[#KEYS] 延迟消息zset, ARGV[argBase + 1] 当前时间, ARGV[argBase + 2] 最多转移条数.
+     * 按到期时间取出最早到期的一批,ZRANGEBYSCORE带LIMIT,不会扫描整个zset;写入主题后再从zset中删除,
+     * 同一个脚本内完成,多个转移方同时运行时也不会重复投递.返回转移的条数
+     */
+    protected static String promoteScript(String storeFunction, int argBase) {
+        return storeFunction
+            + "local due = redis.call('ZRANGEBYSCORE', KEYS[#KEYS], '-inf', ARGV[" + (argBase + 1) + "], 'LIMIT', 0, ARGV["
+            + (argBase + 2) + "]) "
+            + "for i = 1, #due do "
+            + "local member = due[i] "
+            + "local sep = string.find(member, ':', " + (DELAYED_TOKEN_LENGTH + 1) + ", true) "
+            + "store({string.sub(member, sep + 1)}, tonumber(string.sub(member, " + (DELAYED_TOKEN_LENGTH + 1) + ", sep - 1))) "
+            + "end "
+            + "if #due > 0 then "
+            + "redis.call('ZREM', KEYS[#KEYS], unpack(due)) "
+            + "redis.call('PUBLISH', ARGV[1], ARGV[2]) "
+            + "end "
+            + "return #due";
+    }
+
+    /**
+     * @return 发布脚本
+     */
+    protected abstract String publishScript();
+
+    /**
+     * @return 延迟消息的转移脚本
+     */
+    protected abstract String promoteScript();
+
+    /**
+     * @return 写入函数使用的KEYS
+     */
+    protected abstract List<RedisQueue> publishKeys();
+
+    /**
+     * @return 写入函数使用的引擎参数,位于通知频道和主题之后
+     */
+    protected abstract List<byte[]> storeArgs();
+
+    /**
+     * @param messages 消息
+     * @param seconds 过期时间
+     * @return 发布脚本的ARGV
+     */
+    private List<byte[]> publishArgs(List<byte[]> messages, int seconds) {
+        List<byte[]> storeArgs = storeArgs();
+        List<byte[]> args = new ArrayList<>(messages.size() + storeArgs.size() + 3);
+        args.add(NOTIFY_CHANNEL);
+        args.add(topicBytes);
+        args.addAll(storeArgs);
+        args.add(SafeEncoder.encode(String.valueOf(seconds)));
+        args.addAll(messages);
+        return args;
+    }
+
+    @Override
+    public boolean schedule(byte[] message, long dueTime, int seconds) {
+        return delayedRedisQueue.zadd(dueTime, member(message, seconds)) != null;
+    }
+
+    /**
+     * 延迟消息和重试消息在zset中的成员
+     */
+    private static byte[] member(byte[] message, int seconds) {
+        byte[] prefix = SafeEncoder.encode(token() + seconds + ":");
+        byte[] member = new byte[prefix.length + message.length];
+        System.arraycopy(prefix, 0, member, 0, prefix.length);
+        System.arraycopy(message, 0, member, prefix.length, message.length);
+        return member;
+    }
+
+    /**
+     * 固定长度的随机十六进制串
+     */
+    private static String token() {
+        String hex = Long.toHexString(ThreadLocalRandom.current().nextLong());
+        return StringUtils.leftPad(hex, DELAYED_TOKEN_LENGTH, '0');
+    }
+
+    @Override
+    public int promote(long now, int maxMessages) {
+        List<RedisQueue> keys = new ArrayList<>(publishKeys());
+        keys.add(delayedRedisQueue);
+        List<byte[]> args = new ArrayList<>();
+        args.add(NOTIFY_CHANNEL);
+        args.add(topicBytes);
+        args.addAll(storeArgs());
+        args.add(SafeEncoder.encode(String.valueOf(now)));
+        args.add(SafeEncoder.encode(String.valueOf(maxMessages)));
+        Object promoted = RedisQueue.execOnSameRedisConn(redisTransaction -> {
+            return redisTransaction.eval(promoteScript(), keys, args);
+        });
+        return promoted == null ? 0 : ((Long) promoted).intValue();
+    }
+
+    @Override
+    public int delayedMessages() {
+        Long pending = delayedRedisQueue.zcard();
+        return pending == null ? 0 : pending.intValue();
+    }
+
+    @Override
+    public Integer publish(byte[] message, int seconds) {
+        Object firstId = RedisQueue.execOnSameRedisConn(redisTransaction -> {
+            return redisTransaction.eval(publishScript(), publishKeys(),
+                publishArgs(Collections.singletonList(message), seconds));
+        });
+        return firstId == null ? null : ((Long) firstId).intValue();
+    }
+
+    /**
+     * 每批消息预留一段连续的id,所有批次在一次管道中发送
+     */
+    @Override
+    public List<Integer> publishAll(List<byte[]> messages, int seconds) {
+        if (messages.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<Integer> ids = RedisQueue.execOnSameRedisConn(redisTransaction -> {
+            redisTransaction.pipelined();
+            List<Response<Object>> responses = new ArrayList<>();
+            for (int from = 0; from < messages.size(); from += PUBLISH_BATCH_SIZE) {
+                List<byte[]> batch = messages.subList(from, Math.min(from + PUBLISH_BATCH_SIZE, messages.size()));
+                responses.add(redisTransaction.pipelineEval(publishScript(), publishKeys(), publishArgs(batch, seconds)));
+            }
+            redisTransaction.sync();
+            List<Integer> result = new ArrayList<>(messages.size());
+            for (int i = 0; i < responses.size(); i++) {
+                Long firstId = firstId(responses.get(i));
+                int batchSize = Math.min(PUBLISH_BATCH_SIZE, messages.size() - i * PUBLISH_BATCH_SIZE);
+                for (int j = 0; j < batchSize; j++) {
+                    result.add(firstId == null ? null : (int) (firstId + j));
+                }
+            }
+            return result;
+        });
+        return ids != null ? ids : new ArrayList<>(Collections.nCopies(messages.size(), null));
+    }
+
+    private Long firstId(Response<Object> response) {
+        if (response == null) {
+            return null;
+        }
+        try {
+            return (Long) response.get();
+        } catch (Exception e) {
+            log.error("MessageStorage publishAll batch failed, topic=" + partitionTopic, e);
+            return null;
+        }
+    }
+
+    @Override
+    public int committed(String subscriber) {
+        return getLastReadMessage(subscribersRedisQueue(subscriber));
+    }
+
+    @Override
+    public int committed(String subscriber, int initial) {
+        RedisQueue subscribersRedisQueue = subscribersRedisQueue(subscriber);
+        String lastMessageRead = subscribersRedisQueue.get();
+        if (StringUtils.isEmpty(lastMessageRead)) {
+            subscribersRedisQueue.set(String.valueOf(initial), DEFALUT_EXPIRETIME);
+            return initial;
+        }
+        return Integer.valueOf(lastMessageRead);
+    }
+
+    @Override
+    public boolean commit(String subscriber, int offset) {
+        return "OK".equals(subscribersRedisQueue(subscriber).set(String.valueOf(offset), DEFALUT_EXPIRETIME));
+    }
+
+    /**
+     * 在redis端脚本中读取消息并推进offset,一次往返.
+     * 只有整段消息都已过期且超过脚本的扫描上限时才会再次调用脚本
+     * @param script KEYS同OFFSET_SCRIPT,ARGV为args加上最多读取条数,以READ_RESULT结尾
+     * @param subscriber 订阅方
+     * @param maxMessages
+     * @param deadline 大于0时把读取到的消息记录为处理中,确认期限为deadline
+     * @param args
+     * @return
+     */
+    protected Map<Integer, byte[]> readByScript(String script, String subscriber, int maxMessages, long deadline,
+        byte[]... args) {
+        Map<Integer, byte[]> result = new LinkedHashMap<>();
+        if (maxMessages <= 0) {
+            return result;
+        }
+        List<RedisQueue> keys = new ArrayList<>(Arrays.asList(countRedisQueue, subscribersRedisQueue(subscriber)));
+        List<byte[]> argv = new ArrayList<>(Arrays.asList(args));
+        argv.add(SafeEncoder.encode(String.valueOf(Math.min(maxMessages, READ_BATCH_LIMIT))));
+        if (deadline > 0) {
+            keys.add(inflightRedisQueue(subscriber));
+            argv.add(SafeEncoder.encode(String.valueOf(deadline)));
+        }
+        while (true) {
+            Object reply = RedisQueue.execOnSameRedisConn(redisTransaction -> {
+                return redisTransaction.eval(script, keys, argv);
+            });
+            if (!(reply instanceof List)) {
+                //读取失败时offset没有推进,下次重新读取
+                return result;
+            }
+            List<?> values = (List<?>) reply;
+            putMessages(result, values, 1);
+            if (!result.isEmpty() || (Long) values.get(0) <= 0) {
+                return result;
+            }
+        }
+    }
+
+    /**
+     * 解析脚本返回的 id, 消息, id, 消息 ...
+     * @param from 第一个id所在的位置
+     */
+    protected static void putMessages(Map<Integer, byte[]> messages, List<?> values, int from) {
+        for (int i = from; i + 1 < values.size(); i += 2) {
+            messages.put(((Long) values.get(i)).intValue(), (byte[]) values.get(i + 1));
+        }
+    }
+
+    /**
+     * 执行以OFFSET_SCRIPT开头的脚本
+     */
+    protected Object evalOffsetScript(String script, String subscriber, byte[]... args) {
+        return RedisQueue.execOnSameRedisConn(redisTransaction -> {
+            return redisTransaction.eval(script, Arrays.asList(countRedisQueue, subscribersRedisQueue(subscriber)),
+                Arrays.asList(args));
+        });
+    }
+
+    protected int unreadMessagesByScript(String subscriber) {
+        Object unread = evalOffsetScript(UNREAD_SCRIPT, subscriber);
+        return unread == null ? 0 : ((Long) unread).intValue();
+    }
+
+    @Override
+    public int topicSize() {
+        return getTopicSize();
+    }
+
+    @Override
+    public Map<String, Integer> offsets() {
+        Set<String> subscribers = registryMigrated ? registryRedisQueue.smembers() : migrateRegistry();
+        if (subscribers == null) {
+            return null;
+        }
+        Map<String, Integer> offsets = new HashMap<>(subscribers.size());
+        if (subscribers.isEmpty()) {
+            return offsets;
+        }
+        List<String> names = new ArrayList<>(subscribers);
+        List<RedisQueue> keys = new ArrayList<>(names.size() * 2);
+        for (String name : names) {
+            keys.add(offsetRedisQueue(name));
+        }
+        for (String name : names) {
+            keys.add(inflightRedisQueue(name));
+        }
+        Object reply = RedisQueue.execOnSameRedisConn(redisTransaction -> {
+            return redisTransaction.eval(OFFSETS_SCRIPT, keys, Collections.emptyList());
+        });
+        if (!(reply instanceof List)) {
+            return null;
+        }
+        List<?> values = (List<?>) reply;
+        for (int i = 0; i < names.size() && i < values.size(); i++) {
+            //已登记但还没有初始化offset的订阅方
+            if (values.get(i) != null) {
+                offsets.put(names.get(i), ((Long) values.get(i)).intValue());
+            }
+        }
+        return offsets;
+    }
+
+    @Override
+    public int trim(int offset) {
+        int from = trimmed() + 1;
+        int to = Math.min(offset, from + MAX_TRIM_PER_CALL - 1);
+        int deleted = 0;
+        for (int start = from; start <= to; start += TRIM_BATCH_SIZE) {
+            int end = Math.min(start + TRIM_BATCH_SIZE - 1, to);
+            if (!delete(start, end)) {
+                break;
+            }
+            retentionRedisQueue.set(String.valueOf(end), DEFALUT_EXPIRETIME);
+            deleted += end - start + 1;
+        }
+        return deleted;
+    }
+
+    @Override
+    public int trimmed() {
+        String trimmed = retentionRedisQueue.get();
+        return StringUtils.isEmpty(trimmed) ? 0 : Integer.parseInt(trimmed);
+    }
+
+    /**
+     * 删除[start, end]区间内的消息
+     * @return 是否删除成功
+     */
+    protected abstract boolean delete(int start, int end);
+
+    /**
+     * 订阅方的offset队列.第一次使用时先登记订阅方,登记失败时下次使用再登记,
+     * 保证offset被初始化之前订阅方已在登记set中,清理消息时不会漏掉它
+     */
+    protected RedisQueue subscribersRedisQueue(String subscriber) {
+        if (!registered.contains(subscriber) && registryRedisQueue.sadd(subscriber) != null) {
+            registered.add(subscriber);
+        }
+        return offsetRedisQueue(subscriber);
+    }
+
+    /**
+     * 订阅方的offset队列,不登记订阅方
+     */
+    private RedisQueue offsetRedisQueue(String subscriber) {
+        return subscribersRedisQueues.computeIfAbsent(subscriber,
+            name -> new RedisQueue(partitionTopic, TOPIC_SUBSCRIBERS_CACHETYPE, name));
+    }
+
+    /**
+     * 登记set出现之前已有offset的订阅方只能通过scan找到,第一次读取所有订阅方时扫描一次并补登记
+     * @return 扫描到的订阅方,失败返回null
+     */
+    private Set<String> migrateRegistry() {
+        Set<String> subscribers = subscribersPrefixRedisQueue.scanKeys();
+        if (subscribers == null) {
+            return null;
+        }
+        if (!subscribers.isEmpty() && registryRedisQueue.sadd(subscribers.toArray(new String[0])) == null) {
+            return subscribers;
+        }
+        registryMigrated = true;
+        Set<String> registry = registryRedisQueue.smembers();
+        if (registry != null) {
+            subscribers.addAll(registry);
+        }
+        return subscribers;
+    }
+
+    /**
+     * 获取当前订阅方读取的最后一条消息的位置
+     * @return
+     */
+    protected int getLastReadMessage(RedisQueue subscribersRedisQueue) {
+        String lastMessageRead = subscribersRedisQueue.get();
+        if (StringUtils.isEmpty(lastMessageRead)) {
+            int lowest = getTopicSize() - 1;
+            subscribersRedisQueue.set(String.valueOf(lowest), DEFALUT_EXPIRETIME);
+            return lowest;
+        }
+        return Integer.valueOf(lastMessageRead);
+    }
+
+    /**
+     * KEYS[1] 重试队列, ARGV[1] 重试时间, ARGV[2...] 成员
+     */
+    private static final String RETRY_SCRIPT =
+        "local args = {} "
+            + "for i = 2, #ARGV do args[#args + 1] = ARGV[1] args[#args + 1] = ARGV[i] end "
+            + "return redis.call('ZADD', KEYS[1], unpack(args))";
+    /**
+     * KEYS[1] 重试队列, ARGV[1] 当前时间, ARGV[2] 最多取出条数.返回去掉成员前缀的消息
+     */
+    private static final String CLAIM_RETRIES_SCRIPT =
+        "local due = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', ARGV[1], 'LIMIT', 0, ARGV[2]) "
+            + "if #due == 0 then return due end "
+            + "redis.call('ZREM', KEYS[1], unpack(due)) "
+            + "for i = 1, #due do "
+            + "local sep = string.find(due[i], ':', " + (DELAYED_TOKEN_LENGTH + 1) + ", true) "
+            + "due[i] = string.sub(due[i], sep + 1) "
+            + "end "
+            + "return due";
+
+    @Override
+    public boolean retry(String subscriber, List<byte[]> messages, long dueTime) {
+        if (messages.isEmpty()) {
+            return true;
+        }
+        List<byte[]> args = new ArrayList<>(messages.size() + 1);
+        args.add(SafeEncoder.encode(String.valueOf(dueTime)));
+        for (byte[] message : messages) {
+            args.add(member(message, DEFALUT_EXPIRETIME));
+        }
+        Object added = RedisQueue.execOnSameRedisConn(redisTransaction -> {
+            return redisTransaction.eval(RETRY_SCRIPT, Collections.singletonList(retryRedisQueue(subscriber)), args);
+        });
+        return added != null;
+    }
+
+    @Override
+    public List<byte[]> claimRetries(String subscriber, long now, int maxMessages) {
+        Object claimed = RedisQueue.execOnSameRedisConn(redisTransaction -> {
+            return redisTransaction.eval(CLAIM_RETRIES_SCRIPT, Collections.singletonList(retryRedisQueue(subscriber)),
+                Arrays.asList(SafeEncoder.encode(String.valueOf(now)), SafeEncoder.encode(String.valueOf(maxMessages))));
+        });
+        List<byte[]> messages = new ArrayList<>();
+        if (claimed instanceof List) {
+            for (Object message : (List<?>) claimed) {
+                messages.add((byte[]) message);
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * KEYS[1] 处理中消息zset, ARGV[...] 消息id
+     */
+    private static final String ACK_SCRIPT = "return redis.call('ZREM', KEYS[1], unpack(ARGV))";
+    /**
+     * KEYS[1] 处理中消息zset, ARGV[1] 当前时间, ARGV[2] 新的确认期限, ARGV[3] 最多取出条数.
+     * 取出超过期限的消息id并顺延期限,多个实例同时取出时每条消息只会被其中一个取到
+     */
+    private static final String REDELIVER_SCRIPT =
+        "local ids = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', ARGV[1], 'LIMIT', 0, ARGV[3]) "
+            + "for i = 1, #ids do redis.call('ZADD', KEYS[1], 'XX', ARGV[2], ids[i]) end "
+            + "return ids";
+
+    @Override
+    public boolean ack(String subscriber, List<Integer> ids) {
+        if (ids.isEmpty()) {
+            return true;
+        }
+        List<byte[]> args = new ArrayList<>(ids.size());
+        for (Integer id : ids) {
+            args.add(SafeEncoder.encode(String.valueOf(id)));
+        }
+        Object removed = RedisQueue.execOnSameRedisConn(redisTransaction -> {
+            return redisTransaction.eval(ACK_SCRIPT, Collections.singletonList(inflightRedisQueue(subscriber)), args);
+        });
+        return removed != null;
+    }
+
+    /**
+     * 取出的id按连续区间分组,每个区间一次fetch
+     */
+    @Override
+    public Map<Integer, byte[]> redeliver(String subscriber, long now, long deadline, int maxMessages) {
+        Map<Integer, byte[]> result = new TreeMap<>();
+        Object expired = RedisQueue.execOnSameRedisConn(redisTransaction -> {
+            return redisTransaction.eval(REDELIVER_SCRIPT, Collections.singletonList(inflightRedisQueue(subscriber)),
+                Arrays.asList(SafeEncoder.encode(String.valueOf(now)), SafeEncoder.encode(String.valueOf(deadline)),
+                    SafeEncoder.encode(String.valueOf(maxMessages))));
+        });
+        if (!(expired instanceof List) || ((List<?>) expired).isEmpty()) {
+            return result;
+        }
+        List<Integer> ids = new ArrayList<>();
+        for (Object id : (List<?>) expired) {
+            ids.add(Integer.valueOf(SafeEncoder.encode((byte[]) id)));
+        }
+        return redelivered(subscriber, ids);
+    }
+
+    /**
+     * 读取重新投递的消息,已过期或已删除的消息直接确认
+     * @param ids 重新投递的消息id
+     * @return id -> 消息,按id排序
+     */
+    protected Map<Integer, byte[]> redelivered(String subscriber, List<Integer> ids) {
+        Map<Integer, byte[]> result = new TreeMap<>();
+        Collections.sort(ids);
+        List<Integer> missing = new ArrayList<>();
+        for (int from = 0; from < ids.size(); ) {
+            int to = from;
+            while (to + 1 < ids.size() && ids.get(to + 1) == ids.get(to) + 1) {
+                to++;
+            }
+            Map<Integer, byte[]> messages = fetch(ids.get(from) - 1, to - from + 1);
+            for (int i = from; i <= to; i++) {
+                byte[] message = messages.get(ids.get(i));
+                if (message != null) {
+                    result.put(ids.get(i), message);
+                } else if (!messages.isEmpty()) {
+                    //fetch成功但消息已过期或已删除
+                    missing.add(ids.get(i));
+                }
+            }
+            from = to + 1;
+        }
+        ack(subscriber, missing);
+        return result;
+    }
+
+    protected RedisQueue inflightRedisQueue(String subscriber) {
+        return inflightRedisQueues.computeIfAbsent(subscriber,
+            name -> new RedisQueue(partitionTopic, TOPIC_INFLIGHT_CACHETYPE, name));
+    }
+
+    protected RedisQueue retryRedisQueue(String subscriber) {
+        return retryRedisQueues.computeIfAbsent(subscriber,
+            name -> new RedisQueue(partitionTopic, TOPIC_RETRY_CACHETYPE, name));
+    }
+
+    /**
+     * 消息总数量
+     * @return
+     */
+    protected int getTopicSize() {
+        String stopicSize = countRedisQueue.get();
+        int topicSize = 0;
+        if (stopicSize != null) {
+            topicSize = Integer.valueOf(stopicSize);
+        }
+        return topicSize;
+    }
+}
@@ -0,0 +1,246 @@
+package com.redis.mq.mymq;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * @author: xushu
+ * @date: 2018/11/1 15:30
+ * @description: 异步生产者.publish把消息放入有界缓冲区后立即返回,由后台线程收集多个线程的消息,
+ * 攒够batchSize条或第一条消息等待超过linger后通过Producer.publishAll一次管道发送,
+ * 返回的future在发送完成后得到消息所在的分区和id.同一分区的消息按publish的顺序发布.
+ * 缓冲区满时publish阻塞,直到后台线程取走消息
+ */
+public class AsyncProducer implements AutoCloseable {
+
+    private static Logger log = LoggerFactory.getLogger(AsyncProducer.class);
+
+    /**
+     * 默认每批最多发送的消息条数
+     */
+    private static final int DEFAULT_BATCH_SIZE = 500;
+    /**
+     * 默认等待凑批的时间 5ms
+     */
+    private static final long DEFAULT_LINGER = 5;
+    /**
+     * 默认缓冲区大小
+     */
+    private static final int DEFAULT_BUFFER_SIZE = 10000;
+
+    private String topic;
+    private Producer producer;
+    private int batchSize;
+    /**
+     * 等待凑批的时间(纳秒)
+     */
+    private long lingerNanos;
+    private BlockingQueue<PendingMessage> buffer;
+    private Thread sender;
+    private volatile boolean closed;
+
+    public AsyncProducer(String topic) {
+        this(topic, new TopicConfig());
+    }
+
+    public AsyncProducer(String topic, TopicConfig config) {
+        this(topic, config, DEFAULT_BATCH_SIZE, DEFAULT_LINGER, TimeUnit.MILLISECONDS, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param topic 主题
+     * @param config 存储方式、发布方式和消息编码
+     * @param batchSize 每批最多发送的消息条数
+     * @param linger 第一条消息最多等待凑批的时间
+     * @param unit
+     * @param bufferSize 缓冲区最多容纳的消息条数,超过时publish阻塞
+     */
+    public AsyncProducer(String topic, TopicConfig config, int batchSize, long linger, TimeUnit unit, int bufferSize) {
+        if (batchSize <= 0 || bufferSize <= 0) {
+            throw new IllegalArgumentException("batchSize and bufferSize must be positive");
+        }
+        this.topic = topic;
+        this.producer = new Producer(topic, config);
+        this.batchSize = batchSize;
+        this.lingerNanos = unit.toNanos(linger);
+        this.buffer = new ArrayBlockingQueue<>(bufferSize);
+        this.sender = new Thread(this::sendLoop, "redisMq-async-producer-" + topic);
+        this.sender.setDaemon(true);
+        this.sender.start();
+    }
+
+    /**
+     * 异步发布消息,消息默认过期时间
+     * @param message 消息
+     * @return 消息所在的分区和id
+     */
+    public CompletableFuture<PublishResult> publish(RedisMessageModel message) {
+        return publish(message, Producer.DEFALUT_EXPIRETIME);
+    }
+
+    /**
+     * 异步发布消息,缓冲区满时阻塞等待
+     * @param message 消息
+     * @param seconds 过期时间
+     * @return 消息所在的分区和id,发布失败时异常完成
+     */
+    public CompletableFuture<PublishResult> publish(RedisMessageModel message, int seconds) {
+        CompletableFuture<PublishResult> future = new CompletableFuture<>();
+        if (closed) {
+            future.completeExceptionally(new IllegalStateException("AsyncProducer closed, topic=" + topic));
+            return future;
+        }
+        //放入缓冲区之前确定分区,结果中的分区就是实际发往的分区
+        PendingMessage pending = new PendingMessage(message, producer.partition(message), seconds, future);
+        try {
+            buffer.put(pending);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
+            return future;
+        }
+        //与close并发时后台线程可能已经取完缓冲区退出,放入之后重新检查,还在缓冲区中说明没有被取走
+        if (closed && buffer.remove(pending)) {
+            future.completeExceptionally(new IllegalStateException("AsyncProducer closed, topic=" + topic));
+        }
+        return future;
+    }
+
+    private void sendLoop() {
+        List<PendingMessage> batch = new ArrayList<>(batchSize);
+        while (!closed || !buffer.isEmpty()) {
+            try {
+                PendingMessage first = buffer.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + lingerNanos;
+                while (batch.size() < batchSize) {
+                    //先取走已经在缓冲区中的消息,不够时再等待到linger结束
+                    if (buffer.drainTo(batch, batchSize - batch.size()) > 0) {
+                        continue;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0 || closed) {
+                        break;
+                    }
+                    PendingMessage next = buffer.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                send(batch);
+            } catch (InterruptedException e) {
+                //关闭时也要把缓冲区中的消息发送完
+                closed = true;
+            } finally {
+                batch.clear();
+            }
+        }
+        PendingMessage rejected;
+        while ((rejected = buffer.poll()) != null) {
+            rejected.future.completeExceptionally(new IllegalStateException("AsyncProducer closed, topic=" + topic));
+        }
+    }
+
+    /**
+     * 过期时间相同的连续消息一起批量发布,不同过期时间的消息按放入顺序依次发布,
+     * 不会把后放入的消息提前到其他过期时间的消息之前.完成每条消息的future
+     */
+    private void send(List<PendingMessage> batch) {
+        for (int from = 0; from < batch.size(); ) {
+            int seconds = batch.get(from).seconds;
+            int to = from + 1;
+            while (to < batch.size() && batch.get(to).seconds == seconds) {
+                to++;
+            }
+            send(batch.subList(from, to), seconds);
+            from = to;
+        }
+    }
+
+    /**
+     * 按分区分组发布过期时间相同的一段消息,每个分区内保持放入顺序
+     */
+    private void send(List<PendingMessage> run, int seconds) {
+        Map<Integer, List<PendingMessage>> partitions = new LinkedHashMap<>();
+        for (PendingMessage pending : run) {
+            partitions.computeIfAbsent(pending.partition, partition -> new ArrayList<>()).add(pending);
+        }
+        for (Map.Entry<Integer, List<PendingMessage>> partition : partitions.entrySet()) {
+            send(partition.getKey(), partition.getValue(), seconds);
+        }
+    }
+
+    private void send(int partition, List<PendingMessage> pendings, int seconds) {
+        try {
+            List<byte[]> payloads = new ArrayList<>(pendings.size());
+            for (PendingMessage pending : pendings) {
+                payloads.add(producer.encode(pending.message));
+            }
+            List<Integer> ids = producer.publishEncoded(partition, payloads, seconds);
+            for (int i = 0; i < pendings.size(); i++) {
+                Integer id = ids.get(i);
+                if (id != null) {
+                    pendings.get(i).future.complete(new PublishResult(partition, id));
+                } else {
+                    pendings.get(i).future.completeExceptionally(
+                        new IllegalStateException("AsyncProducer publish failed, topic=" + topic));
+                }
+            }
+        } catch (Exception e) {
+            log.error("AsyncProducer publish batch failed, topic=" + topic + ", partition=" + partition + ", size="
+                + pendings.size(), e);
+            for (PendingMessage pending : pendings) {
+                pending.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * 缓冲区中等待发送的消息条数
+     * @return
+     */
+    public int pendingMessages() {
+        return buffer.size();
+    }
+
+    /**
+     * 不再接收新消息,等待缓冲区中的消息发送完
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            sender.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class PendingMessage {
+        private final RedisMessageModel message;
+        private final int partition;
+        private final int seconds;
+        private final CompletableFuture<PublishResult> future;
+
+        private PendingMessage(RedisMessageModel message, int partition, int seconds,
+            CompletableFuture<PublishResult> future) {
+            this.message = message;
+            this.partition = partition;
+            this.seconds = seconds;
+            this.future = future;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.redis.mq.mymq;
+
+import java.util.List;
+
+@FunctionalInterface
+public interface BatchCallback {
+    /**
+     * 批量处理消息
+     * @param messages
+     */
+    void handle(List<RedisMessageModel> messages);
+}
@@ -0,0 +1,233 @@
+package com.redis.mq.mymq;
+
+import com.alibaba.fastjson.JSON;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+/**
+ * @author: xushu
+ * @date: 2018/10/22 10:15
+ * @description: 紧凑的二进制编码,不写字段名.格式为
+ * 版本号(1字节) + 字段存在标记(1字节) + 依次写入存在的字段:
+ * 整数和时间(毫秒)为zigzag变长整数,字符串为变长整数长度 + UTF-8字节.
+ * 有扩展字段的消息使用扩展版本号,字段存在标记之后多一个扩展字段标记,扩展字段写在最后;
+ * 没有扩展字段的消息格式不变,旧版本消费者仍然可以读取.
+ * 解码时第一个字节不是版本号的消息按fastjson文本解析,兼容旧消息.
+ * 旧版本消费者只能解析fastjson文本,滚动升级时先升级所有消费者,再把生产者切换为这个编码
+ */
+public class BinaryMessageCodec implements MessageCodec {
+
+    /**
+     * 版本号,json文本总是以'{'开头,不会与之冲突
+     */
+    private static final byte VERSION = 0x01;
+    /**
+     * 扩展版本号,0x02已被MessageCompression使用
+     */
+    private static final byte VERSION_EXTENDED = 0x03;
+
+    private static final int ID = 1;
+    private static final int CREATE_TIME = 1 << 1;
+    private static final int UPDATE_TIME = 1 << 2;
+    private static final int CONTENT = 1 << 3;
+    private static final int TOPIC = 1 << 4;
+    private static final int EXTRA_INFO = 1 << 5;
+    private static final int KEY = 1 << 6;
+    private static final int PARTITION = 1 << 7;
+    /**
+     * 扩展字段
+     */
+    private static final int RETRIES = 1;
+
+    @Override
+    public byte[] encode(RedisMessageModel message) {
+        byte[] content = utf8(message.getContent());
+        byte[] topic = utf8(message.getTopic());
+        byte[] extraInfo = utf8(message.getExtraInfo());
+        byte[] key = utf8(message.getKey());
+        int flags = (message.getId() != null ? ID : 0)
+            | (message.getCreateTime() != null ? CREATE_TIME : 0)
+            | (message.getUpdateTime() != null ? UPDATE_TIME : 0)
+            | (content != null ? CONTENT : 0)
+            | (topic != null ? TOPIC : 0)
+            | (extraInfo != null ? EXTRA_INFO : 0)
+            | (key != null ? KEY : 0)
+            | (message.getPartition() != null ? PARTITION : 0);
+        int extendedFlags = message.getRetries() != null ? RETRIES : 0;
+
+        //定长部分最多 3 + 5 + 10 + 10 + 5 + 5,字符串各自再加5字节长度
+        Writer writer = new Writer(38 + length(content) + length(topic) + length(extraInfo) + length(key));
+        writer.writeByte(extendedFlags != 0 ? VERSION_EXTENDED : VERSION);
+        writer.writeByte(flags);
+        if (extendedFlags != 0) {
+            writer.writeByte(extendedFlags);
+        }
+        if (message.getId() != null) {
+            writer.writeVarLong(message.getId());
+        }
+        if (message.getCreateTime() != null) {
+            writer.writeVarLong(message.getCreateTime().getTime());
+        }
+        if (message.getUpdateTime() != null) {
+            writer.writeVarLong(message.getUpdateTime().getTime());
+        }
+        writer.writeBytes(content);
+        writer.writeBytes(topic);
+        writer.writeBytes(extraInfo);
+        writer.writeBytes(key);
+        if (message.getPartition() != null) {
+            writer.writeVarLong(message.getPartition());
+        }
+        if (message.getRetries() != null) {
+            writer.writeVarLong(message.getRetries());
+        }
+        return writer.toByteArray();
+    }
+
+    @Override
+    public RedisMessageModel decode(byte[] bytes) {
+        if (!isBinary(bytes)) {
+            return JSON.parseObject(bytes, RedisMessageModel.class);
+        }
+        return decodeBinary(bytes);
+    }
+
+    static boolean isBinary(byte[] bytes) {
+        return bytes != null && bytes.length > 0 && (bytes[0] == VERSION || bytes[0] == VERSION_EXTENDED);
+    }
+
+    static RedisMessageModel decodeBinary(byte[] bytes) {
+        Reader reader = new Reader(bytes);
+        RedisMessageModel message = new RedisMessageModel();
+        int version = reader.readByte();
+        int flags = reader.readByte();
+        int extendedFlags = version == VERSION_EXTENDED ? reader.readByte() : 0;
+        if ((flags & ID) != 0) {
+            message.setId((int) reader.readVarLong());
+        }
+        if ((flags & CREATE_TIME) != 0) {
+            message.setCreateTime(new Date(reader.readVarLong()));
+        }
+        if ((flags & UPDATE_TIME) != 0) {
+            message.setUpdateTime(new Date(reader.readVarLong()));
+        }
+        if ((flags & CONTENT) != 0) {
+            message.setContent(reader.readString());
+        }
+        if ((flags & TOPIC) != 0) {
+            message.setTopic(reader.readString());
+        }
+        if ((flags & EXTRA_INFO) != 0) {
+            message.setExtraInfo(reader.readString());
+        }
+        if ((flags & KEY) != 0) {
+            message.setKey(reader.readString());
+        }
+        if ((flags & PARTITION) != 0) {
+            message.setPartition((int) reader.readVarLong());
+        }
+        if ((extendedFlags & RETRIES) != 0) {
+            message.setRetries((int) reader.readVarLong());
+        }
+        return message;
+    }
+
+    private static byte[] utf8(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int length(byte[] value) {
+        return value == null ? 0 : value.length + 5;
+    }
+
+    private static class Writer {
+        private byte[] buffer;
+        private int position;
+
+        Writer(int capacity) {
+            this.buffer = new byte[capacity];
+        }
+
+        void writeByte(int value) {
+            ensureCapacity(1);
+            buffer[position++] = (byte) value;
+        }
+
+        void writeVarLong(long value) {
+            //zigzag,负数也只占少量字节
+            long zigzag = (value << 1) ^ (value >> 63);
+            ensureCapacity(10);
+            while ((zigzag & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((zigzag & 0x7F) | 0x80);
+                zigzag >>>= 7;
+            }
+            buffer[position++] = (byte) zigzag;
+        }
+
+        void writeBytes(byte[] value) {
+            if (value == null) {
+                return;
+            }
+            writeVarLong(value.length);
+            ensureCapacity(value.length);
+            System.arraycopy(value, 0, buffer, position, value.length);
+            position += value.length;
+        }
+
+        private void ensureCapacity(int size) {
+            if (position + size > buffer.length) {
+                byte[] newBuffer = new byte[Math.max(buffer.length * 2, position + size)];
+                System.arraycopy(buffer, 0, newBuffer, 0, position);
+                buffer = newBuffer;
+            }
+        }
+
+        byte[] toByteArray() {
+            if (position == buffer.length) {
+                return buffer;
+            }
+            byte[] result = new byte[position];
+            System.arraycopy(buffer, 0, result, 0, position);
+            return result;
+        }
+    }
+
+    private static class Reader {
+        private final byte[] buffer;
+        private int position;
+
+        Reader(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        int readByte() {
+            return buffer[position++] & 0xFF;
+        }
+
+        long readVarLong() {
+            long zigzag = 0;
+            for (int shift = 0; ; shift += 7) {
+                if (shift >= 64) {
+                    throw new IllegalArgumentException("malformed varint in message");
+                }
+                int b = readByte();
+                zigzag |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+
+        String readString() {
+            int length = (int) readVarLong();
+            if (length < 0 || position + length > buffer.length) {
+                throw new IllegalArgumentException("malformed string length " + length + " in message");
+            }
+            String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.redis.mq.mymq;
+
+/**
+ * @author: xushu
+ * @date: 2018/10/25 11:05
+ * @description: 消息读取方式,只对KEY_VALUE存储生效,STREAM存储总是通过XREADGROUP一次读取
+ */
+public enum ConsumeMode {
+    /**
+     * watch订阅方offset后分别读取主题总数、offset和消息,再在redis事务中推进offset,并发读时事务会被取消重试
+     */
+    TRANSACTION,
+    /**
+     * 在redis端通过lua脚本原子地读取消息并推进offset,每次读取一次往返
+     */
+    SCRIPT
+}
@@ -2,44 +2,195 @@ package com.redis.mq.mymq;
 
 import com.alibaba.fastjson.JSON;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.util.CollectionUtils;
 
 /**
  * @author: xushu
  * @date: 2018/10/8 17:26
- * @description: 订阅方
+ * @description: 订阅方.可以被多个线程共享,每次读取都在redis端原子推进订阅方的读取位置.
+ * redis出错时读取方法返回空结果;开启熔断(redis.circuit.enabled)后,熔断器打开期间所有方法
+ * 不再等待超时,直接抛出RedisUnavailableException,读取位置不变
  */
 public class Consumer {
 
     private static Logger log = LoggerFactory.getLogger(Consumer.class);
 
-    protected static final String TOPIC_SUBSCRIBERS_CACHETYPE = "key_subscribers";
     /**
-     * 默认不过期
+     * 没有到期的重试消息时,再次检查重试队列的间隔 1s
      */
-    protected static final int DEFALUT_EXPIRETIME = 0;
+    private static final long RETRY_CHECK_INTERVAL = 1000;
     /**
-     * 主题总数
+     * 确认模式下检查超时未确认消息的间隔 1s
      */
-    private RedisQueue countRedisQueue;
+    private static final long REDELIVER_CHECK_INTERVAL = 1000;
     /**
-     * 主题消息
+     * 积累多少条确认后一次提交
      */
-    private RedisQueue messageRedisQueue;
+    private static final int ACK_BATCH_SIZE = 100;
     /**
-     * 当前主题订阅者
+     * 确认最长积累的时间 100ms,在下一次读取时提交
      */
-    private RedisQueue subscribersRedisQueue;
+    private static final long ACK_FLUSH_INTERVAL = 100;
+
+    /**
+     * 主题
+     */
+    private final String topic;
+    /**
+     * 订阅方
+     */
+    private final String subscriber;
+    /**
+     * 每个分区的消息存储
+     */
+    private final MessageStorage[] messageStorages;
+    /**
+     * 当前读取的分区
+     */
+    private volatile int[] assignedPartitions;
+    /**
+     * 下一次从哪个分区开始读取,避免总是先读前面的分区
+     */
+    private final AtomicInteger nextPartition = new AtomicInteger();
+    /**
+     * 消息编码
+     */
+    private final MessageCodec codec;
+    /**
+     * 压缩阈值,重新写入重试队列时使用
+     */
+    private final int compressThreshold;
+    /**
+     * 处理失败的策略,为null时只记录日志
+     */
+    private final FailurePolicy failurePolicy;
+    /**
+     * 死信主题的生产者
+     */
+    private final Producer deadLetterProducer;
+    /**
+     * 下一次检查重试队列的时间
+     */
+    private volatile long nextRetryCheck;
+    /**
+     * 确认期限(毫秒),小于等于0时不需要确认
+     */
+    private final long visibilityTimeout;
+    /**
+     * 每个分区还没有提交的确认
+     */
+    private final List<List<Integer>> pendingAcks;
+    private int pendingAckCount;
+    private long lastAckFlush = System.currentTimeMillis();
+    /**
+     * 下一次检查超时未确认消息的时间
+     */
+    private volatile long nextRedeliverCheck;
 
     public Consumer(String topic, String subscriber) {
-        this.countRedisQueue = new RedisQueue(topic, Producer.TOPIC_COUNT_CACHETYPE);
-        this.messageRedisQueue = new RedisQueue(topic, Producer.TOPIC_MESSAGE_CACHETYPE);
-        this.subscribersRedisQueue = new RedisQueue(topic, TOPIC_SUBSCRIBERS_CACHETYPE, subscriber);
+        this(topic, subscriber, StorageType.KEY_VALUE);
+    }
+
+    /**
+     * 读取主题的所有分区,主题的分区数在创建时读取
+     * @param topic 主题
+     * @param subscriber 订阅方
+     * @param storageType 存储方式
+     */
+    public Consumer(String topic, String subscriber, StorageType storageType) {
+        this(topic, subscriber, new TopicConfig().setStorageType(storageType));
+    }
+
+    /**
+     * 读取主题的所有分区,主题的分区数在创建时读取
+     * @param topic 主题
+     * @param subscriber 订阅方
+     * @param config 存储方式和消息编码
+     */
+    public Consumer(String topic, String subscriber, TopicConfig config) {
+        this.topic = topic;
+        this.subscriber = subscriber;
+        int partitions = TopicPartitions.partitions(topic);
+        this.messageStorages = new MessageStorage[partitions];
+        for (int partition = 0; partition < partitions; partition++) {
+            this.messageStorages[partition] = MessageStorage.create(topic, partition, config);
+        }
+        this.codec = config.getCodec();
+        this.compressThreshold = config.getCompressThreshold();
+        this.failurePolicy = config.getFailurePolicy();
+        this.deadLetterProducer = failurePolicy != null && failurePolicy.isDeadLetter()
+            ? new Producer(FailurePolicy.deadLetterTopic(topic), config) : null;
+        this.visibilityTimeout = config.getVisibilityTimeout();
+        this.pendingAcks = newAckLists(partitions);
+        this.assignedPartitions = allPartitions(partitions);
+    }
+
+    private static List<List<Integer>> newAckLists(int partitions) {
+        List<List<Integer>> acks = new ArrayList<>(partitions);
+        for (int partition = 0; partition < partitions; partition++) {
+            acks.add(new ArrayList<>());
+        }
+        return acks;
+    }
+
+    /**
+     * 只读取指定的分区
+     * @param topic 主题
+     * @param subscriber 订阅方
+     * @param storageType 存储方式
+     * @param partitions 分区
+     */
+    public Consumer(String topic, String subscriber, StorageType storageType, int... partitions) {
+        this(topic, subscriber, new TopicConfig().setStorageType(storageType), partitions);
+    }
+
+    /**
+     * 只读取指定的分区
+     * @param topic 主题
+     * @param subscriber 订阅方
+     * @param config 存储方式和消息编码
+     * @param partitions 分区
+     */
+    public Consumer(String topic, String subscriber, TopicConfig config, int... partitions) {
+        this(topic, subscriber, config);
+        assign(partitions);
+    }
+
+    /**
+     * 指定读取的分区
+     * @param partitions 分区
+     */
+    public void assign(int... partitions) {
+        for (int partition : partitions) {
+            if (partition < 0 || partition >= messageStorages.length) {
+                throw new IllegalArgumentException("topic " + topic + " has no partition " + partition);
+            }
+        }
+        this.assignedPartitions = partitions.clone();
+    }
+
+    /**
+     * 当前读取的分区
+     * @return
+     */
+    public int[] assignment() {
+        return assignedPartitions.clone();
+    }
+
+    private static int[] allPartitions(int partitions) {
+        int[] all = new int[partitions];
+        for (int partition = 0; partition < partitions; partition++) {
+            all[partition] = partition;
+        }
+        return all;
     }
 
     public void consume(Callback callback) {
@@ -49,11 +200,14 @@ public class Consumer {
             if (message != null) {
                 try {
                     callback.handle(message);
+                    ack(message);
                 } catch (Exception e) {
                     log.error("Consumer consume callback hanle failed, message={}" + message.toString() ,e);
+                    reject(message, e);
                 }
             }
         } while(message != null);
+        flushAcks();
     }
 
     public RedisMessageModel consume() {
@@ -61,74 +215,299 @@ public class Consumer {
     }
 
     /**
-     * 读取队列中的消息.保证在集群环境下能正确并发读取消息
-     * 1.保证watch到客户端索引自增+1之间的操作是原子操作
-     *
-     * @return
+     * 批量消费,每次最多处理maxMessages条消息,直到没有未读消息
+     * @param callback
+     * @param maxMessages
      */
-    private RedisMessageModel readUntilEnd() {
-        return RedisQueue.execOnSameRedisConn(redisTransaction -> {
-            while (true) {
-                redisTransaction.watch(subscribersRedisQueue);
-                if (unreadMessages() > 0) {
-                    String message = read();
-                    if (CollectionUtils.isEmpty(goNext(redisTransaction))) {
-                        continue;
+    public void consume(BatchCallback callback, int maxMessages) {
+        List<RedisMessageModel> messages = null;
+        do {
+            messages = poll(maxMessages);
+            if (!messages.isEmpty()) {
+                try {
+                    callback.handle(messages);
+                    for (RedisMessageModel message : messages) {
+                        ack(message);
                     }
-                    if (message == null) {
-                        continue;
+                } catch (Exception e) {
+                    log.error("Consumer consume batch callback hanle failed, size=" + messages.size(), e);
+                    for (RedisMessageModel message : messages) {
+                        reject(message, e);
                     }
-                    return JSON.parseObject(message, RedisMessageModel.class);
                 }
-                return null;
             }
-        });
+        } while (!messages.isEmpty());
+        flushAcks();
     }
 
     /**
-     * 客户端消息索引+1
-     * @param redisTransaction
-     * @return
+     * 确认消息已处理完.确认模式下poll读取的消息需要调用方确认,否则超过确认期限后重新投递;
+     * 确认先在本地积累,满ACK_BATCH_SIZE条或下一次读取时超过ACK_FLUSH_INTERVAL后一次提交
+     * @param message
      */
-    private List<Object> goNext(RedisQueue.RedisTransaction redisTransaction) {
-        redisTransaction.multi();
-        redisTransaction.incr(subscribersRedisQueue);
-        return redisTransaction.exec();
+    public void ack(RedisMessageModel message) {
+        if (visibilityTimeout <= 0 || message.getPartition() == null || message.getId() == null) {
+            return;
+        }
+        boolean flush;
+        synchronized (pendingAcks) {
+            pendingAcks.get(message.getPartition()).add(message.getId());
+            flush = ++pendingAckCount >= ACK_BATCH_SIZE;
+        }
+        if (flush) {
+            flushAcks();
+        }
     }
 
     /**
-     * 获取当前订阅方读取的最后一条消息的位置
+     * 提交所有积累的确认,提交失败的确认在超过确认期限后重新投递
+     */
+    public void flushAcks() {
+        if (visibilityTimeout <= 0) {
+            return;
+        }
+        List<List<Integer>> acks;
+        synchronized (pendingAcks) {
+            lastAckFlush = System.currentTimeMillis();
+            if (pendingAckCount == 0) {
+                return;
+            }
+            acks = new ArrayList<>(pendingAcks.size());
+            for (int partition = 0; partition < pendingAcks.size(); partition++) {
+                acks.add(pendingAcks.set(partition, new ArrayList<>()));
+            }
+            pendingAckCount = 0;
+        }
+        for (int partition = 0; partition < acks.size(); partition++) {
+            List<Integer> ids = acks.get(partition);
+            if (!ids.isEmpty() && !messageStorages[partition].ack(subscriber, ids)) {
+                log.error("Consumer ack failed, topic=" + topic + ", partition=" + partition + ", size="
+                    + ids.size());
+            }
+        }
+    }
+
+    /**
+     * 按失败策略处理一条消息:重试次数没有用完时写入重试队列,等待退避时间后重新读取,
+     * 否则转入死信主题.没有配置失败策略时丢弃,确认模式下则等待超过确认期限后重新投递.
+     * poll读取的消息处理失败时由调用方调用
+     * @param message 处理失败的消息
+     * @param cause 失败原因
+     */
+    public void reject(RedisMessageModel message, Exception cause) {
+        if (failurePolicy == null) {
+            return;
+        }
+        int retries = message.getRetries() == null ? 0 : message.getRetries();
+        int partition = message.getPartition() == null ? 0 : message.getPartition();
+        //失败的消息交给重试队列或死信主题后不再需要按确认期限重新投递
+        ack(message);
+        if (retries < failurePolicy.getMaxRetries()) {
+            message.setRetries(retries + 1);
+            long dueTime = System.currentTimeMillis() + failurePolicy.backoff(retries + 1);
+            byte[] encoded = MessageCompression.compress(codec.encode(message), compressThreshold);
+            if (!messageStorages[partition].retry(subscriber, Collections.singletonList(encoded), dueTime)) {
+                log.error("Consumer retry failed, message dropped, message=" + message);
+            }
+            return;
+        }
+        if (deadLetterProducer == null) {
+            log.warn("Consumer retries exhausted, message dropped, message={}", message);
+            return;
+        }
+        RedisMessageModel deadLetter = DeadLetterQueue.deadLetter(message, subscriber, cause);
+        if (!deadLetterProducer.publish(deadLetter, failurePolicy.getDeadLetterExpireSeconds())) {
+            log.error("Consumer dead letter publish failed, message dropped, message=" + message);
+        }
+    }
+
+    /**
+     * 一次读取最多maxMessages条未读消息
+     * @param maxMessages
+     * @return 没有未读消息时返回空列表
+     */
+    public List<RedisMessageModel> poll(int maxMessages) {
+        return readBatch(maxMessages);
+    }
+
+    /**
+     * 读取一条消息,没有未读消息时阻塞等待,直到有新消息或超时
+     * @param timeout 最长等待时间
+     * @param unit
+     * @return 超时返回null
+     */
+    public RedisMessageModel poll(long timeout, TimeUnit unit) {
+        List<RedisMessageModel> messages = poll(1, timeout, unit);
+        return messages.isEmpty() ? null : messages.get(0);
+    }
+
+    /**
+     * 一次读取最多maxMessages条未读消息,没有未读消息时阻塞等待生产者的通知,直到有新消息或超时
+     * @param maxMessages
+     * @param timeout 最长等待时间
+     * @param unit
+     * @return 超时返回空列表
+     */
+    public List<RedisMessageModel> poll(int maxMessages, long timeout, TimeUnit unit) {
+        MessageNotifier notifier = MessageNotifier.getInstance();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            //先记录通知版本号再读取,读取之后到达的通知不会丢失
+            long version = notifier.version(topic);
+            List<RedisMessageModel> messages = poll(maxMessages);
+            long remaining = deadline - System.nanoTime();
+            if (!messages.isEmpty() || remaining <= 0) {
+                return messages;
+            }
+            try {
+                notifier.await(topic, version, remaining, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return messages;
+            }
+        }
+    }
+
+    /**
+     * 依次读取分配到的分区中的消息,并推进订阅方在这些分区的读取位置
+     *
+     * @param maxMessages
      * @return
      */
-    private int getLastReadMessage() {
-        String lastMessageRead = subscribersRedisQueue.get();
-        if (StringUtils.isEmpty(lastMessageRead)) {
-            int lowest = getTopicSize() - 1;
-            subscribersRedisQueue.set(String.valueOf(lowest), DEFALUT_EXPIRETIME);
-            return lowest;
+    private List<RedisMessageModel> readBatch(int maxMessages) {
+        int[] partitions = assignedPartitions;
+        List<RedisMessageModel> result = new ArrayList<>();
+        if (partitions.length == 0) {
+            return result;
+        }
+        //先读取到期的重试消息
+        if (failurePolicy != null && System.currentTimeMillis() >= nextRetryCheck) {
+            result.addAll(claimRetries(maxMessages));
+            if (result.size() < maxMessages) {
+                nextRetryCheck = System.currentTimeMillis() + RETRY_CHECK_INTERVAL;
+            }
+        }
+        if (visibilityTimeout > 0) {
+            if (System.currentTimeMillis() - lastAckFlush >= ACK_FLUSH_INTERVAL) {
+                flushAcks();
+            }
+            if (result.size() < maxMessages && System.currentTimeMillis() >= nextRedeliverCheck) {
+                redeliver(partitions, maxMessages, result);
+            }
+        }
+        int start = nextPartition.getAndIncrement() & Integer.MAX_VALUE;
+        for (int i = 0; i < partitions.length && result.size() < maxMessages; i++) {
+            int partition = partitions[(start + i) % partitions.length];
+            Map<Integer, byte[]> messages = visibilityTimeout > 0
+                ? messageStorages[partition].read(subscriber, maxMessages - result.size(),
+                System.currentTimeMillis() + visibilityTimeout)
+                : messageStorages[partition].read(subscriber, maxMessages - result.size());
+            for (Map.Entry<Integer, byte[]> message : messages.entrySet()) {
+                result.add(decode(partition, message.getKey(), message.getValue()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 重新投递分配到的分区中超过确认期限的消息,同时顺延确认期限
+     */
+    private void redeliver(int[] partitions, int maxMessages, List<RedisMessageModel> result) {
+        long now = System.currentTimeMillis();
+        for (int partition : partitions) {
+            if (result.size() >= maxMessages) {
+                return;
+            }
+            Map<Integer, byte[]> messages = messageStorages[partition].redeliver(subscriber, now, now + visibilityTimeout,
+                maxMessages - result.size());
+            for (Map.Entry<Integer, byte[]> message : messages.entrySet()) {
+                result.add(decode(partition, message.getKey(), message.getValue()));
+            }
+        }
+        if (result.size() < maxMessages) {
+            nextRedeliverCheck = now + REDELIVER_CHECK_INTERVAL;
         }
-        return Integer.valueOf(lastMessageRead);
     }
 
     /**
-     * 消息总数量
+     * 取出分配到的分区中到期的重试消息,消息保留原来的id
+     * @param maxMessages
      * @return
      */
-    private int getTopicSize() {
-        String stopicSize = countRedisQueue.get();
-        int topicSize = 0;
-        if (stopicSize != null) {
-            topicSize = Integer.valueOf(stopicSize);
+    List<RedisMessageModel> claimRetries(int maxMessages) {
+        List<RedisMessageModel> result = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (int partition : assignedPartitions) {
+            if (result.size() >= maxMessages) {
+                break;
+            }
+            for (byte[] message : messageStorages[partition].claimRetries(subscriber, now, maxMessages - result.size())) {
+                RedisMessageModel messageModel = codec.decode(MessageCompression.decompress(message));
+                messageModel.setPartition(partition);
+                result.add(messageModel);
+            }
         }
-        return topicSize;
+        return result;
     }
 
     /**
-     * 读取最后一条消息
+     * 读取分区中offset之后的消息,不推进读取位置
+     * @param partition 分区
+     * @param offset
+     * @param maxMessages
+     * @return 消息id -> 消息,id连续,已过期的消息对应null
+     */
+    Map<Integer, byte[]> fetch(int partition, int offset, int maxMessages) {
+        return messageStorages[partition].fetch(offset, maxMessages);
+    }
+
+    /**
+     * 订阅方在分区中已读取的最后一条消息的id
+     * @param partition
      * @return
      */
+    int committed(int partition) {
+        return messageStorages[partition].committed(subscriber);
+    }
+
+    /**
+     * 提交订阅方在分区中已读取的最后一条消息的id
+     * @param partition
+     * @param offset
+     * @return
+     */
+    boolean commit(int partition, int offset) {
+        return messageStorages[partition].commit(subscriber, offset);
+    }
+
+    String topic() {
+        return topic;
+    }
+
+    RedisMessageModel decode(int partition, int id, byte[] message) {
+        RedisMessageModel messageModel = codec.decode(MessageCompression.decompress(message));
+        messageModel.setId(id);
+        messageModel.setPartition(partition);
+        return messageModel;
+    }
+
+    private RedisMessageModel readUntilEnd() {
+        List<RedisMessageModel> messages = readBatch(1);
+        return messages.isEmpty() ? null : messages.get(0);
+    }
+
+    /**
+     * 读取最后一条消息
+     * @return 消息的json文本,与消息的编码方式无关
+     */
     public String read() {
-        return messageRedisQueue.cat(getLastReadMessage() + 1).get();
+        for (int partition : assignedPartitions) {
+            byte[] message = messageStorages[partition].peek(subscriber);
+            if (message != null) {
+                return JSON.toJSONString(codec.decode(MessageCompression.decompress(message)));
+            }
+        }
+        return null;
     }
 
     /**
@@ -136,6 +515,10 @@ public class Consumer {
      * @return
      */
     public int unreadMessages() {
-        return getTopicSize() - getLastReadMessage();
+        int unreadMessages = 0;
+        for (int partition : assignedPartitions) {
+            unreadMessages += messageStorages[partition].unreadMessages(subscriber);
+        }
+        return unreadMessages;
     }
 }
@@ -0,0 +1,210 @@
+package com.redis.mq.mymq;
+
+import com.redis.mq.utils.RedisCache;
+import com.redis.mq.utils.RedisUnavailableException;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * @author: xushu
+ * @date: 2018/10/24 10:48
+ * @description: 订阅方的消费组.同一订阅方的多个实例(可以在不同jvm中)加入同一个消费组,
+ * 成员通过心跳注册在 redisMq:topic:key_members:subscriber 中,按成员列表把主题的分区平均分给各个成员,
+ * 成员加入或心跳超时后,每个成员根据相同的成员列表重新计算自己负责的分区.
+ * 分区是分配的最小单位,成员数超过分区数时多出的成员处于待命状态
+ */
+public class ConsumerGroup implements AutoCloseable {
+
+    private static Logger log = LoggerFactory.getLogger(ConsumerGroup.class);
+
+    protected static final String GROUP_MEMBERS_CACHETYPE = "key_members";
+    /**
+     * 心跳间隔 3s
+     */
+    private static final long HEARTBEAT_INTERVAL = 1000 * 3;
+    /**
+     * 超过10s没有心跳的成员视为已经退出
+     */
+    private static final long SESSION_TIMEOUT = 1000 * 10;
+
+    private String topic;
+    private String subscriber;
+    /**
+     * 当前成员id
+     */
+    private String memberId;
+    /**
+     * 主题的分区数
+     */
+    private int partitions;
+    /**
+     * 消费组成员 成员id -> 最近一次心跳时间
+     */
+    private RedisQueue membersRedisQueue;
+    /**
+     * 读取分配到的分区
+     */
+    private Consumer consumer;
+    private ScheduledExecutorService heartbeatExecutor;
+    /**
+     * 最近一次计算分配时的成员列表
+     */
+    private volatile List<String> members = Collections.emptyList();
+    /**
+     * 最近一次心跳成功的本地时间
+     */
+    private volatile long lastHeartbeat;
+    /**
+     * 离开消费组后不再发送心跳,避免正在执行的心跳把当前成员重新加入消费组
+     */
+    private volatile boolean closed;
+
+    public ConsumerGroup(String topic, String subscriber) {
+        this(topic, subscriber, StorageType.KEY_VALUE);
+    }
+
+    public ConsumerGroup(String topic, String subscriber, StorageType storageType) {
+        this(topic, subscriber, new TopicConfig().setStorageType(storageType));
+    }
+
+    public ConsumerGroup(String topic, String subscriber, TopicConfig config) {
+        this.topic = topic;
+        this.subscriber = subscriber;
+        this.memberId = ManagementFactory.getRuntimeMXBean().getName() + ":" + UUID.randomUUID();
+        this.partitions = TopicPartitions.partitions(topic);
+        this.membersRedisQueue = new RedisQueue(topic, GROUP_MEMBERS_CACHETYPE, subscriber);
+        //加入消费组之前不读取任何分区
+        this.consumer = new Consumer(topic, subscriber, config, new int[0]);
+    }
+
+    /**
+     * 加入消费组并开始发送心跳
+     */
+    public synchronized void start() {
+        if (heartbeatExecutor != null) {
+            return;
+        }
+        heartbeat();
+        heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "redisMq-group-" + topic + "-" + subscriber);
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeatExecutor.scheduleWithFixedDelay(this::heartbeat, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL,
+            TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 读取当前成员分配到的分区的消费者
+     * @return
+     */
+    public Consumer getConsumer() {
+        return consumer;
+    }
+
+    public String getMemberId() {
+        return memberId;
+    }
+
+    /**
+     * 最近一次计算分配时的成员列表
+     * @return
+     */
+    public List<String> members() {
+        return members;
+    }
+
+    private void heartbeat() {
+        if (closed) {
+            return;
+        }
+        try {
+            Long now = RedisCache.getCurrentTimeMillisFromRedis();
+            if (now == null || membersRedisQueue.zadd(now, memberId) == null) {
+                expireIfHeartbeatLost();
+                return;
+            }
+            lastHeartbeat = System.currentTimeMillis();
+            membersRedisQueue.zremrangeByScore(0, now - SESSION_TIMEOUT);
+            Set<String> alive = membersRedisQueue.zrangeByScore(now - SESSION_TIMEOUT, Double.MAX_VALUE);
+            if (alive == null) {
+                return;
+            }
+            List<String> sortedMembers = new ArrayList<>(alive);
+            Collections.sort(sortedMembers);
+            if (!closed && !sortedMembers.equals(members)) {
+                rebalance(sortedMembers);
+            }
+        } catch (RedisUnavailableException e) {
+            //熔断期间与心跳失败一样处理,超过会话超时后放弃分区
+            expireIfHeartbeatLost();
+        } catch (Exception e) {
+            log.error("ConsumerGroup heartbeat failed, topic=" + topic + ", subscriber=" + subscriber, e);
+        }
+    }
+
+    /**
+     * 心跳一直失败时,其他成员已经把当前成员移出消费组,放弃所有分区
+     */
+    private void expireIfHeartbeatLost() {
+        if (!members.isEmpty() && System.currentTimeMillis() - lastHeartbeat > SESSION_TIMEOUT) {
+            log.warn("ConsumerGroup heartbeat lost, release partitions, member={}", memberId);
+            consumer.assign();
+            members = Collections.emptyList();
+        }
+    }
+
+    /**
+     * 第i个成员负责分区号对成员数取模等于i的分区.所有成员按同一个有序成员列表计算,结果不会重叠;
+     * 成员列表变化的短暂窗口内两个成员可能同时读取同一分区:每次读取都在一个lua脚本(TRANSACTION方式为watch事务)中推进offset,
+     * 两个成员不会读到同一批消息,但这个窗口内分区中消息的处理顺序得不到保证;确认模式下超时未确认的消息会重新投递,处理需要幂等
+     * @param sortedMembers
+     */
+    private void rebalance(List<String> sortedMembers) {
+        int index = sortedMembers.indexOf(memberId);
+        List<Integer> assigned = new ArrayList<>();
+        if (index >= 0) {
+            for (int partition = index; partition < partitions; partition += sortedMembers.size()) {
+                assigned.add(partition);
+            }
+        }
+        consumer.assign(assigned.stream().mapToInt(Integer::intValue).toArray());
+        members = sortedMembers;
+        log.info("ConsumerGroup rebalanced, topic={}, subscriber={}, members={}, assigned={}", topic, subscriber,
+            sortedMembers.size(), assigned);
+    }
+
+    /**
+     * 离开消费组,其他成员在下一次心跳时接管当前成员的分区.
+     * 等正在执行的心跳结束后再移出成员,否则心跳可能在移出之后重新加入消费组并分配分区
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (heartbeatExecutor != null) {
+            heartbeatExecutor.shutdownNow();
+            try {
+                if (!heartbeatExecutor.awaitTermination(HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS)) {
+                    log.warn("ConsumerGroup heartbeat did not stop in time, member={}", memberId);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            heartbeatExecutor = null;
+        }
+        consumer.assign();
+        membersRedisQueue.zrem(memberId);
+        members = Collections.emptyList();
+    }
+}
@@ -0,0 +1,156 @@
+package com.redis.mq.mymq;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * @author: xushu
+ * @date: 2018/10/31 10:20
+ * @description: 死信主题 topic.DLQ.重试次数用完的消息连同失败原因写入死信主题,
+ * extraInfo中记录 {订阅方, 原分区, 失败原因, 原extraInfo}.
+ * replay按顺序读取死信消息,恢复原来的extraInfo后批量写回对应订阅方的重试队列,只有当初处理失败的订阅方会重新读取
+ */
+public class DeadLetterQueue {
+
+    private static Logger log = LoggerFactory.getLogger(DeadLetterQueue.class);
+
+    /**
+     * 记录重新投递进度的订阅方
+     */
+    private static final String REPLAY_SUBSCRIBER = "redisMq-dlq-replay";
+    private static final String SUBSCRIBER_FIELD = "subscriber";
+    private static final String PARTITION_FIELD = "partition";
+    private static final String ERROR_FIELD = "error";
+    private static final String EXTRA_INFO_FIELD = "extraInfo";
+
+    private String topic;
+    /**
+     * 原主题每个分区的消息存储
+     */
+    private MessageStorage[] messageStorages;
+    /**
+     * 死信主题每个分区的消息存储
+     */
+    private MessageStorage[] deadLetterStorages;
+    private MessageCodec codec;
+    private int compressThreshold;
+
+    public DeadLetterQueue(String topic) {
+        this(topic, new TopicConfig());
+    }
+
+    /**
+     * @param topic 原主题
+     * @param config 存储方式需要与消费者一致
+     */
+    public DeadLetterQueue(String topic, TopicConfig config) {
+        this.topic = topic;
+        int partitions = TopicPartitions.partitions(topic);
+        this.messageStorages = new MessageStorage[partitions];
+        for (int partition = 0; partition < partitions; partition++) {
+            this.messageStorages[partition] = MessageStorage.create(topic, partition, config);
+        }
+        String deadLetterTopic = FailurePolicy.deadLetterTopic(topic);
+        int deadLetterPartitions = TopicPartitions.partitions(deadLetterTopic);
+        this.deadLetterStorages = new MessageStorage[deadLetterPartitions];
+        for (int partition = 0; partition < deadLetterPartitions; partition++) {
+            this.deadLetterStorages[partition] = MessageStorage.create(deadLetterTopic, partition, config);
+        }
+        this.codec = config.getCodec();
+        this.compressThreshold = config.getCompressThreshold();
+    }
+
+    /**
+     * 生成写入死信主题的消息
+     * @param message 处理失败的消息
+     * @param subscriber 处理失败的订阅方
+     * @param cause 失败原因
+     * @return
+     */
+    static RedisMessageModel deadLetter(RedisMessageModel message, String subscriber, Exception cause) {
+        JSONObject info = new JSONObject();
+        info.put(SUBSCRIBER_FIELD, subscriber);
+        info.put(PARTITION_FIELD, message.getPartition());
+        info.put(ERROR_FIELD, String.valueOf(cause));
+        info.put(EXTRA_INFO_FIELD, message.getExtraInfo());
+        RedisMessageModel deadLetter = new RedisMessageModel();
+        deadLetter.setCreateTime(message.getCreateTime());
+        deadLetter.setUpdateTime(message.getUpdateTime());
+        deadLetter.setContent(message.getContent());
+        deadLetter.setTopic(message.getTopic());
+        deadLetter.setKey(message.getKey());
+        deadLetter.setRetries(message.getRetries());
+        deadLetter.setExtraInfo(info.toJSONString());
+        return deadLetter;
+    }
+
+    /**
+     * 把死信主题中还没有重新投递的消息写回原订阅方的重试队列,立即可以重新读取,重试次数清零
+     * @param maxMessages 每个死信分区最多重新投递的条数
+     * @return 重新投递的条数
+     */
+    public int replay(int maxMessages) {
+        int replayed = 0;
+        for (MessageStorage deadLetterStorage : deadLetterStorages) {
+            int offset = deadLetterStorage.committed(REPLAY_SUBSCRIBER, 0);
+            Map<Integer, byte[]> messages = deadLetterStorage.fetch(offset, maxMessages);
+            if (messages.isEmpty()) {
+                continue;
+            }
+            //订阅方 -> 分区 -> 消息
+            Map<String, Map<Integer, List<byte[]>>> retries = new LinkedHashMap<>();
+            int last = offset;
+            for (Map.Entry<Integer, byte[]> message : messages.entrySet()) {
+                last = message.getKey();
+                if (message.getValue() == null) {
+                    continue;
+                }
+                RedisMessageModel messageModel = codec.decode(MessageCompression.decompress(message.getValue()));
+                JSONObject info = parseInfo(messageModel.getExtraInfo());
+                Integer partition = info == null ? null : info.getInteger(PARTITION_FIELD);
+                if (partition == null || partition < 0 || partition >= messageStorages.length) {
+                    log.warn("DeadLetterQueue skip message without dead letter info, topic={}, message={}", topic,
+                        messageModel);
+                    continue;
+                }
+                messageModel.setExtraInfo(info.getString(EXTRA_INFO_FIELD));
+                messageModel.setRetries(null);
+                messageModel.setPartition(partition);
+                retries.computeIfAbsent(info.getString(SUBSCRIBER_FIELD), subscriber -> new LinkedHashMap<>())
+                    .computeIfAbsent(partition, p -> new ArrayList<>())
+                    .add(MessageCompression.compress(codec.encode(messageModel), compressThreshold));
+            }
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, Map<Integer, List<byte[]>>> subscriber : retries.entrySet()) {
+                for (Map.Entry<Integer, List<byte[]>> partition : subscriber.getValue().entrySet()) {
+                    if (!messageStorages[partition.getKey()].retry(subscriber.getKey(), partition.getValue(), now)) {
+                        //没有全部写回时不推进进度,下次重新投递,可能重复
+                        return replayed;
+                    }
+                    replayed += partition.getValue().size();
+                }
+            }
+            deadLetterStorage.commit(REPLAY_SUBSCRIBER, last);
+        }
+        return replayed;
+    }
+
+    private static JSONObject parseInfo(String extraInfo) {
+        if (extraInfo == null) {
+            return null;
+        }
+        try {
+            return JSON.parseObject(extraInfo);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.redis.mq.mymq;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * @author: xushu
+ * @date: 2018/10/30 14:10
+ * @description: 延迟消息的转移.定期把每个分区中已到期的延迟消息按到期顺序转移到主题中,
+ * 每次脚本最多转移PROMOTE_BATCH_SIZE条,只读取已到期的部分,积压几十万条未到期的消息也不影响转移的开销.
+ * 转移在脚本中原子完成,多个实例同时运行时不会重复投递
+ */
+public class DelayedMessagePromoter implements AutoCloseable {
+
+    private static Logger log = LoggerFactory.getLogger(DelayedMessagePromoter.class);
+
+    /**
+     * 没有到期消息时的检查间隔 100ms,也是延迟消息可见时间的最大误差
+     */
+    private static final long PROMOTE_INTERVAL = 100;
+    /**
+     * 每次脚本最多转移的消息条数,避免单次脚本阻塞redis太久
+     */
+    private static final int PROMOTE_BATCH_SIZE = 500;
+
+    private String topic;
+    /**
+     * 每个分区的消息存储
+     */
+    private MessageStorage[] messageStorages;
+    private ScheduledExecutorService promoteExecutor;
+
+    public DelayedMessagePromoter(String topic) {
+        this(topic, new TopicConfig());
+    }
+
+    /**
+     * 主题的分区数在创建时读取
+     * @param topic 主题
+     * @param config 存储方式需要与生产者一致
+     */
+    public DelayedMessagePromoter(String topic, TopicConfig config) {
+        this.topic = topic;
+        int partitions = TopicPartitions.partitions(topic);
+        this.messageStorages = new MessageStorage[partitions];
+        for (int partition = 0; partition < partitions; partition++) {
+            this.messageStorages[partition] = MessageStorage.create(topic, partition, config);
+        }
+    }
+
+    /**
+     * 开始定期转移
+     */
+    public synchronized void start() {
+        if (promoteExecutor != null) {
+            return;
+        }
+        promoteExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "redisMq-delayed-" + topic);
+            thread.setDaemon(true);
+            return thread;
+        });
+        promoteExecutor.scheduleWithFixedDelay(this::promoteAll, 0, PROMOTE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 积压较多时连续转移,直到没有到期消息
+     */
+    private void promoteAll() {
+        int promoted;
+        do {
+            promoted = promote();
+        } while (promoted > 0 && !Thread.currentThread().isInterrupted());
+    }
+
+    /**
+     * 转移一次所有分区中已到期的延迟消息,每个分区最多转移一批
+     * @return 转移的条数
+     */
+    public int promote() {
+        long now = System.currentTimeMillis();
+        int promoted = 0;
+        for (int partition = 0; partition < messageStorages.length; partition++) {
+            try {
+                promoted += messageStorages[partition].promote(now, PROMOTE_BATCH_SIZE);
+            } catch (Exception e) {
+                log.error("DelayedMessagePromoter promote failed, topic=" + topic + ", partition=" + partition, e);
+            }
+        }
+        return promoted;
+    }
+
+    /**
+     * 所有分区还没有转移到主题中的延迟消息条数
+     * @return
+     */
+    public int delayedMessages() {
+        int delayed = 0;
+        for (MessageStorage messageStorage : messageStorages) {
+            delayed += messageStorage.delayedMessages();
+        }
+        return delayed;
+    }
+
+    /**
+     * 停止定期转移
+     */
+    @Override
+    public synchronized void close() {
+        if (promoteExecutor != null) {
+            promoteExecutor.shutdownNow();
+            promoteExecutor = null;
+        }
+    }
+}
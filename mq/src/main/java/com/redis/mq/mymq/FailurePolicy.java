@@ -0,0 +1,98 @@
+package com.redis.mq.mymq;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author: xushu
+ * @date: 2018/10/31 10:20
+ * @description: 消息处理失败时的处理策略.失败的消息写入订阅方的重试队列,按指数退避的时间重新读取,
+ * 不阻塞主题中后续消息的读取;重试maxRetries次仍然失败时转入死信主题 topic.DLQ,
+ * 失败原因记录在extraInfo中,可以通过DeadLetterQueue重新投递
+ */
+public class FailurePolicy {
+    /** 最多重试次数 */
+    private int maxRetries = 3;
+    /** 第一次重试的等待时间(毫秒) */
+    private long initialBackoff = 1000;
+    /** 每次重试等待时间的倍数 */
+    private double multiplier = 2;
+    /** 最长等待时间(毫秒) */
+    private long maxBackoff = 1000 * 60 * 10;
+    /** 重试次数用完后是否转入死信主题,否则丢弃 */
+    private boolean deadLetter = true;
+    /** 死信消息的过期时间,默认7天 */
+    private int deadLetterExpireSeconds = 60 * 60 * 24 * 7;
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public FailurePolicy setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+        return this;
+    }
+
+    public long getInitialBackoff() {
+        return initialBackoff;
+    }
+
+    public FailurePolicy setInitialBackoff(long initialBackoff, TimeUnit unit) {
+        this.initialBackoff = unit.toMillis(initialBackoff);
+        return this;
+    }
+
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    public FailurePolicy setMultiplier(double multiplier) {
+        this.multiplier = multiplier;
+        return this;
+    }
+
+    public long getMaxBackoff() {
+        return maxBackoff;
+    }
+
+    public FailurePolicy setMaxBackoff(long maxBackoff, TimeUnit unit) {
+        this.maxBackoff = unit.toMillis(maxBackoff);
+        return this;
+    }
+
+    public boolean isDeadLetter() {
+        return deadLetter;
+    }
+
+    public FailurePolicy setDeadLetter(boolean deadLetter) {
+        this.deadLetter = deadLetter;
+        return this;
+    }
+
+    public int getDeadLetterExpireSeconds() {
+        return deadLetterExpireSeconds;
+    }
+
+    public FailurePolicy setDeadLetterExpireSeconds(int deadLetterExpireSeconds) {
+        this.deadLetterExpireSeconds = deadLetterExpireSeconds;
+        return this;
+    }
+
+    /**
+     * 第retries次重试前的等待时间
+     * @param retries 从1开始
+     * @return 毫秒
+     */
+    public long backoff(int retries) {
+        double backoff = initialBackoff * Math.pow(multiplier, retries - 1);
+        return (long) Math.min(backoff, maxBackoff);
+    }
+
+    /**
+     * 主题的死信主题
+     * @param topic
+     * @return
+     */
+    public static String deadLetterTopic(String topic) {
+        return topic + ".DLQ";
+    }
+}
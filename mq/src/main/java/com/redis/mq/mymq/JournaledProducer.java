@@ -0,0 +1,246 @@
+package com.redis.mq.mymq;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * @author: xushu
+ * @date: 2018/11/8 14:30
+ * @description: 先写本地日志的生产者.publish只把消息追加到内存映射的日志文件后返回,不等待redis,
+ * 后台线程按写入顺序读取日志,按分区批量发布到redis,发送成功后才移动checkpoint.
+ * redis不可用时消息留在日志中,恢复后继续发送,进程重启时从checkpoint重新发送.
+ * 发送失败重试和重启重放都可能重复发布少量消息,同一分区内的顺序不变
+ */
+public class JournaledProducer implements AutoCloseable {
+
+    private static Logger log = LoggerFactory.getLogger(JournaledProducer.class);
+
+    /**
+     * 默认段文件大小 64M
+     */
+    private static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    /**
+     * 每批最多发送的消息条数
+     */
+    private static final int SHIP_BATCH_SIZE = 500;
+    /**
+     * 日志中没有新消息时的等待时间,publish会提前唤醒
+     */
+    private static final long IDLE_WAIT = TimeUnit.MILLISECONDS.toNanos(10);
+    /**
+     * 发送失败后的重试间隔
+     */
+    private static final long RETRY_INTERVAL = 1000;
+    /**
+     * 读取日志失败后重试间隔的上限,每次失败翻倍
+     */
+    private static final long MAX_READ_RETRY_INTERVAL = 30000;
+
+    private final String topic;
+    private final Producer producer;
+    private final MessageJournal journal;
+    private final Thread shipper;
+    private volatile boolean closed;
+
+    /**
+     * @param topic 主题
+     * @param config 存储方式、发布方式和消息编码
+     * @param directory 日志目录,每个主题使用单独的目录,同一目录只能被一个JournaledProducer打开
+     */
+    public JournaledProducer(String topic, TopicConfig config, File directory) throws IOException {
+        this(topic, config, directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param topic 主题
+     * @param config 存储方式、发布方式和消息编码
+     * @param directory 日志目录,每个主题使用单独的目录,同一目录只能被一个JournaledProducer打开
+     * @param segmentSize 段文件大小,单条消息不能超过段文件大小
+     */
+    public JournaledProducer(String topic, TopicConfig config, File directory, int segmentSize) throws IOException {
+        this.topic = topic;
+        this.producer = new Producer(topic, config);
+        this.journal = new MessageJournal(directory, segmentSize);
+        this.shipper = new Thread(this::shipLoop, "redisMq-journal-" + topic);
+        this.shipper.setDaemon(true);
+        this.shipper.start();
+    }
+
+    /**
+     * 发布消息,消息默认过期时间
+     * @param message 消息
+     */
+    public void publish(RedisMessageModel message) {
+        publish(message, Producer.DEFALUT_EXPIRETIME);
+    }
+
+    /**
+     * 发布消息,写入本地日志后立即返回,过期时间从发送到redis时开始计算
+     * @param message 消息
+     * @param seconds 过期时间
+     * @throws UncheckedIOException 写入日志失败
+     */
+    public void publish(RedisMessageModel message, int seconds) {
+        if (closed) {
+            throw new IllegalStateException("JournaledProducer closed, topic=" + topic);
+        }
+        try {
+            journal.append(producer.partition(message), seconds, producer.encode(message));
+        } catch (IOException e) {
+            throw new UncheckedIOException("JournaledProducer append failed, topic=" + topic, e);
+        }
+        LockSupport.unpark(shipper);
+    }
+
+    private void shipLoop() {
+        long readRetryInterval = RETRY_INTERVAL;
+        while (true) {
+            MessageJournal.Batch batch;
+            try {
+                batch = journal.read(SHIP_BATCH_SIZE);
+                readRetryInterval = RETRY_INTERVAL;
+            } catch (IOException e) {
+                //读取失败时不能退出,否则publish仍然成功但消息再也不会被发送
+                log.error("JournaledProducer read journal failed, topic=" + topic + ", retry after " + readRetryInterval
+                    + "ms", e);
+                if (closed) {
+                    return;
+                }
+                try {
+                    Thread.sleep(readRetryInterval);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+                readRetryInterval = Math.min(readRetryInterval * 2, MAX_READ_RETRY_INTERVAL);
+                continue;
+            }
+            if (batch.entries.isEmpty()) {
+                journal.acknowledge(batch);
+                if (closed) {
+                    return;
+                }
+                LockSupport.parkNanos(IDLE_WAIT);
+                continue;
+            }
+            if (!ship(batch)) {
+                //关闭时redis仍不可用,剩余的消息下次启动时重新发送
+                return;
+            }
+            journal.acknowledge(batch);
+        }
+    }
+
+    /**
+     * 按分区分组发送,每个分区内按日志顺序发送,失败的分区等待后从第一条失败的消息开始重试,直到全部发送成功
+     * @return 关闭时还有没发送成功的消息返回false
+     */
+    private boolean ship(MessageJournal.Batch batch) {
+        Map<Integer, List<MessageJournal.Entry>> partitions = new LinkedHashMap<>();
+        for (MessageJournal.Entry entry : batch.entries) {
+            //分区数减少后旧分区的消息发往现有分区
+            partitions.computeIfAbsent(entry.partition % producer.partitions(), partition -> new ArrayList<>())
+                .add(entry);
+        }
+        while (true) {
+            Iterator<Map.Entry<Integer, List<MessageJournal.Entry>>> iterator = partitions.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Integer, List<MessageJournal.Entry>> partition = iterator.next();
+                List<MessageJournal.Entry> entries = partition.getValue();
+                int sent = send(partition.getKey(), entries);
+                if (sent == entries.size()) {
+                    iterator.remove();
+                } else {
+                    //只保留第一条失败之后的消息,保证分区内的顺序
+                    entries.subList(0, sent).clear();
+                }
+            }
+            if (partitions.isEmpty()) {
+                return true;
+            }
+            if (closed) {
+                return false;
+            }
+            try {
+                Thread.sleep(RETRY_INTERVAL);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 过期时间相同的连续消息一起发送,一段发送失败后不再发送后面的消息,避免同一分区内的消息乱序
+     * @param entries 同一分区的消息,按日志顺序
+     * @return 从头开始连续发送成功的条数
+     */
+    private int send(int partition, List<MessageJournal.Entry> entries) {
+        int sent = 0;
+        while (sent < entries.size()) {
+            int seconds = entries.get(sent).seconds;
+            int end = sent + 1;
+            while (end < entries.size() && entries.get(end).seconds == seconds) {
+                end++;
+            }
+            sent += send(partition, seconds, entries.subList(sent, end));
+            if (sent < end) {
+                return sent;
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * @return 从头开始连续发送成功的条数
+     */
+    private int send(int partition, int seconds, List<MessageJournal.Entry> entries) {
+        List<byte[]> payloads = new ArrayList<>(entries.size());
+        for (MessageJournal.Entry entry : entries) {
+            payloads.add(entry.payload);
+        }
+        try {
+            List<Integer> ids = producer.publishEncoded(partition, payloads, seconds);
+            int sent = 0;
+            while (sent < ids.size() && ids.get(sent) != null) {
+                sent++;
+            }
+            return sent;
+        } catch (Exception e) {
+            log.error("JournaledProducer ship failed, topic=" + topic + ", partition=" + partition, e);
+            return 0;
+        }
+    }
+
+    /**
+     * 日志中还没有发送到redis的消息条数
+     * @return
+     */
+    public long pendingMessages() {
+        return journal.pending();
+    }
+
+    /**
+     * 不再接收新消息,等待日志中的消息发送完.redis不可用时不再等待,剩余的消息下次启动时发送
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(shipper);
+        try {
+            shipper.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        journal.close();
+    }
+}
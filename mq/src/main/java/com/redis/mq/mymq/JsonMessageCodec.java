@@ -0,0 +1,24 @@
+package com.redis.mq.mymq;
+
+import com.alibaba.fastjson.JSON;
+
+/**
+ * @author: xushu
+ * @date: 2018/10/22 10:15
+ * @description: fastjson文本编码,与旧版本写入的消息格式相同,需要与旧版本消费者共存时使用
+ */
+public class JsonMessageCodec implements MessageCodec {
+
+    @Override
+    public byte[] encode(RedisMessageModel message) {
+        return JSON.toJSONBytes(message);
+    }
+
+    @Override
+    public RedisMessageModel decode(byte[] bytes) {
+        if (BinaryMessageCodec.isBinary(bytes)) {
+            return BinaryMessageCodec.decodeBinary(bytes);
+        }
+        return JSON.parseObject(bytes, RedisMessageModel.class);
+    }
+}
@@ -0,0 +1,249 @@
+package com.redis.mq.mymq;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.util.CollectionUtils;
+
+/**
+ * @author: xushu
+ * @date: 2018/10/18 11:20
+ * @description: 每条消息一个string key的存储引擎.
+ * 主题总数 redisMq:topic:key_count:all,消息 redisMq:topic:queueId_message:id,订阅方offset redisMq:topic:key_subscribers:subscriber
+ */
+class KeyValueStorage extends AbstractMessageStorage {
+
+    protected static final String TOPIC_MESSAGE_CACHETYPE = "queueId_message";
+    /**
+     * KEYS[1] 主题总数key, ARGV[1] 通知频道, ARGV[2] 主题, ARGV[3] 消息key前缀
+     */
+    private static final String STORE_FUNCTION =
+        "local function store(messages, seconds) "
+            + "local n = #messages "
+            + "local first = redis.call('INCRBY', KEYS[1], n) - n + 1 "
+            + "for i = 1, n do "
+            + "local key = ARGV[3] .. (first + i - 1) "
+            + "if seconds > 0 then redis.call('SET', key, messages[i], 'EX', seconds) "
+            + "else redis.call('SET', key, messages[i]) end "
+            + "end "
+            + "return first "
+            + "end ";
+    private static final String PUBLISH_SCRIPT = publishScript(STORE_FUNCTION, 3);
+    private static final String PROMOTE_SCRIPT = promoteScript(STORE_FUNCTION, 3);
+    /**
+     * KEYS同READ_RESULT, ARGV[1] 消息key前缀, ARGV[2] 最多读取条数.
+     * 读取offset之后的消息并推进offset,跳过已过期的消息.
+     * 返回 {剩余未读条数, id, 消息, id, 消息 ...}
+     */
+    private static final String READ_SCRIPT = OFFSET_SCRIPT
+        + "local start = offset "
+        + "local max = tonumber(ARGV[2]) "
+        + "local result = {0} "
+        + "local scanned = 0 "
+        + "while #result == 1 and offset < size and scanned < " + READ_SCAN_LIMIT + " do "
+        + "local n = math.min(size - offset, max) "
+        + "local keys = {} "
+        + "for i = 1, n do keys[i] = ARGV[1] .. (offset + i) end "
+        + "local values = redis.call('MGET', unpack(keys)) "
+        + "for i = 1, n do "
+        + "if values[i] then result[#result + 1] = offset + i result[#result + 1] = values[i] end "
+        + "end "
+        + "offset = offset + n "
+        + "scanned = scanned + 1 "
+        + "end "
+        + "if offset ~= start then redis.call('SET', KEYS[2], offset) end "
+        + "result[1] = size - offset "
+        + READ_RESULT;
+    /**
+     * KEYS同OFFSET_SCRIPT, ARGV[1] 消息key前缀.返回下一条未读消息,不推进offset
+     */
+    private static final String PEEK_SCRIPT = OFFSET_SCRIPT
+        + "return redis.call('GET', ARGV[1] .. (offset + 1))";
+
+    /**
+     * 主题消息队列
+     */
+    private final RedisQueue messageRedisQueue;
+    /**
+     * 发布方式
+     */
+    private final PublishMode publishMode;
+    /**
+     * 读取方式
+     */
+    private final ConsumeMode consumeMode;
+
+    KeyValueStorage(String topic, int partition, PublishMode publishMode, ConsumeMode consumeMode) {
+        super(topic, partition);
+        this.messageRedisQueue = new RedisQueue(partitionTopic, TOPIC_MESSAGE_CACHETYPE);
+        this.publishMode = publishMode;
+        this.consumeMode = consumeMode;
+    }
+
+    @Override
+    protected String publishScript() {
+        return PUBLISH_SCRIPT;
+    }
+
+    @Override
+    protected List<RedisQueue> publishKeys() {
+        return Collections.singletonList(countRedisQueue);
+    }
+
+    @Override
+    protected String promoteScript() {
+        return PROMOTE_SCRIPT;
+    }
+
+    @Override
+    protected List<byte[]> storeArgs() {
+        return Collections.singletonList(messageRedisQueue.keyPrefixBytes());
+    }
+
+    @Override
+    public Integer publish(byte[] message, int seconds) {
+        if (publishMode == PublishMode.SCRIPT) {
+            //在redis端脚本中原子发布
+            return super.publish(message, seconds);
+        }
+        //在redis事务下发布相关消息
+        return exec(message, seconds);
+    }
+
+    private Integer exec(final byte[] message, int seconds) {
+        return RedisQueue.execOnSameRedisConn(redisTransaction -> {
+            //监控消息总条数.如果其他客户端进行了修改.则本次事务取消
+            redisTransaction.watch(countRedisQueue);
+            Integer lastMessageId = getNextMessageId();
+            redisTransaction.multi();
+            //记录消息总条数
+            redisTransaction.set(countRedisQueue, lastMessageId.toString());
+            //具体消息
+            redisTransaction.set(messageRedisQueue, lastMessageId, message, seconds);
+            //唤醒等待中的消费者
+            redisTransaction.notifyConsumers(topic);
+            return redisTransaction.exec() != null ? lastMessageId : null;
+        });
+    }
+
+    /**
+     * 获取下一条消息id
+     * @return
+     */
+    protected Integer getNextMessageId() {
+        final String slastMessageId = countRedisQueue.get();
+        Integer lastMessageId = 0;
+        if (slastMessageId != null) {
+            lastMessageId = Integer.parseInt(slastMessageId);
+        }
+        lastMessageId++;
+        return lastMessageId;
+    }
+
+    /**
+     * 读取队列中的消息.保证在集群环境下能正确并发读取消息
+     * 1.保证watch到客户端索引自增之间的操作是原子操作
+     * 2.一次mget读取offset之后的消息,再通过incrBy一次推进offset
+     */
+    @Override
+    public Map<Integer, byte[]> read(String subscriber, int maxMessages) {
+        if (consumeMode == ConsumeMode.SCRIPT) {
+            return readByScript(READ_SCRIPT, subscriber, maxMessages, 0, messageRedisQueue.keyPrefixBytes());
+        }
+        RedisQueue subscribersRedisQueue = subscribersRedisQueue(subscriber);
+        Map<Integer, byte[]> messages = RedisQueue.execOnSameRedisConn(redisTransaction -> {
+            while (true) {
+                redisTransaction.watch(subscribersRedisQueue);
+                int lastReadMessage = getLastReadMessage(subscribersRedisQueue);
+                int size = Math.min(getTopicSize() - lastReadMessage, maxMessages);
+                if (size <= 0) {
+                    return new LinkedHashMap<Integer, byte[]>();
+                }
+                List<byte[]> values = messageRedisQueue.mget(lastReadMessage + 1, lastReadMessage + size);
+                if (values == null) {
+                    //读取失败时不推进offset,下次重新读取
+                    return new LinkedHashMap<Integer, byte[]>();
+                }
+                if (CollectionUtils.isEmpty(goNext(redisTransaction, subscribersRedisQueue, size))) {
+                    continue;
+                }
+                Map<Integer, byte[]> result = new LinkedHashMap<>(size);
+                for (int i = 0; i < values.size(); i++) {
+                    //已过期的消息直接跳过
+                    if (values.get(i) != null) {
+                        result.put(lastReadMessage + 1 + i, values.get(i));
+                    }
+                }
+                if (result.isEmpty()) {
+                    //这一段消息都已过期,继续读取后面的消息
+                    continue;
+                }
+                return result;
+            }
+        });
+        return messages != null ? messages : new LinkedHashMap<>();
+    }
+
+    /**
+     * 确认模式总是在脚本中读取,推进offset与记录处理中的消息是原子的
+     */
+    @Override
+    public Map<Integer, byte[]> read(String subscriber, int maxMessages, long deadline) {
+        return readByScript(READ_SCRIPT, subscriber, maxMessages, deadline, messageRedisQueue.keyPrefixBytes());
+    }
+
+    @Override
+    protected boolean delete(int start, int end) {
+        return messageRedisQueue.unlink(start, end) != null;
+    }
+
+    /**
+     * 一次mget读取offset之后的消息,已过期的消息对应null
+     */
+    @Override
+    public Map<Integer, byte[]> fetch(int offset, int maxMessages) {
+        Map<Integer, byte[]> result = new LinkedHashMap<>();
+        int size = Math.min(getTopicSize() - offset, maxMessages);
+        if (size <= 0) {
+            return result;
+        }
+        List<byte[]> values = messageRedisQueue.mget(offset + 1, offset + size);
+        if (values != null) {
+            for (int i = 0; i < values.size(); i++) {
+                result.put(offset + 1 + i, values.get(i));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public byte[] peek(String subscriber) {
+        if (consumeMode == ConsumeMode.SCRIPT) {
+            return (byte[]) evalOffsetScript(PEEK_SCRIPT, subscriber, messageRedisQueue.keyPrefixBytes());
+        }
+        return messageRedisQueue.getBytes(getLastReadMessage(subscribersRedisQueue(subscriber)) + 1);
+    }
+
+    @Override
+    public int unreadMessages(String subscriber) {
+        if (consumeMode == ConsumeMode.SCRIPT) {
+            return unreadMessagesByScript(subscriber);
+        }
+        return getTopicSize() - getLastReadMessage(subscribersRedisQueue(subscriber));
+    }
+
+    /**
+     * 客户端消息索引+size
+     * @param redisTransaction
+     * @param subscribersRedisQueue
+     * @param size
+     * @return
+     */
+    private List<Object> goNext(RedisQueue.RedisTransaction redisTransaction, RedisQueue subscribersRedisQueue, int size) {
+        redisTransaction.multi();
+        redisTransaction.incrBy(subscribersRedisQueue, size);
+        return redisTransaction.exec();
+    }
+}
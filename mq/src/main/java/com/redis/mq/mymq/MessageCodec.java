@@ -0,0 +1,24 @@
+package com.redis.mq.mymq;
+
+/**
+ * @author: xushu
+ * @date: 2018/10/22 10:15
+ * @description: 消息编解码.生产者把消息编码为二进制写入redis,消费者读取后解码.
+ * 各实现在解码时都能识别其他实现写入的格式,切换编码方式时已写入的消息仍能被读取
+ */
+public interface MessageCodec {
+
+    /**
+     * 编码消息
+     * @param message 消息
+     * @return
+     */
+    byte[] encode(RedisMessageModel message);
+
+    /**
+     * 解码消息
+     * @param bytes 消息
+     * @return
+     */
+    RedisMessageModel decode(byte[] bytes);
+}
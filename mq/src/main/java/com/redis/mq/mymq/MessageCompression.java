@@ -0,0 +1,94 @@
+package com.redis.mq.mymq;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * @author: xushu
+ * @date: 2018/10/23 14:30
+ * @description: 编码后的消息超过阈值时压缩.压缩后的格式为
+ * 压缩标记(1字节) + 原始长度(4字节) + deflate数据,标记与各编码的首字节都不相同,
+ * 消费者总是先检查标记,所以压缩与未压缩的消息可以混合存放在同一主题中
+ */
+final class MessageCompression {
+
+    private static final byte COMPRESSED = 0x02;
+    private static final int HEADER_LENGTH = 5;
+
+    /**
+     * Deflater/Inflater持有堆外内存,每个线程复用一个
+     */
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    private MessageCompression() {
+    }
+
+    /**
+     * 超过阈值时压缩,压缩后没有变小则保留原样
+     * @param bytes 编码后的消息
+     * @param threshold 压缩阈值(字节),小于等于0时不压缩
+     * @return
+     */
+    static byte[] compress(byte[] bytes, int threshold) {
+        if (threshold <= 0 || bytes.length <= threshold) {
+            return bytes;
+        }
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(bytes);
+        deflater.finish();
+        //只接受比原始消息小的结果,缓冲区满了说明压缩无效
+        byte[] buffer = new byte[bytes.length];
+        int length = HEADER_LENGTH;
+        while (!deflater.finished() && length < buffer.length) {
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+        if (!deflater.finished()) {
+            return bytes;
+        }
+        buffer[0] = COMPRESSED;
+        buffer[1] = (byte) (bytes.length >>> 24);
+        buffer[2] = (byte) (bytes.length >>> 16);
+        buffer[3] = (byte) (bytes.length >>> 8);
+        buffer[4] = (byte) bytes.length;
+        byte[] result = new byte[length];
+        System.arraycopy(buffer, 0, result, 0, length);
+        return result;
+    }
+
+    /**
+     * 解压带有压缩标记的消息,其他消息原样返回
+     * @param bytes
+     * @return
+     */
+    static byte[] decompress(byte[] bytes) {
+        if (bytes == null || bytes.length < HEADER_LENGTH || bytes[0] != COMPRESSED) {
+            return bytes;
+        }
+        int originalLength = ((bytes[1] & 0xFF) << 24) | ((bytes[2] & 0xFF) << 16) | ((bytes[3] & 0xFF) << 8)
+            | (bytes[4] & 0xFF);
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH);
+        byte[] result = new byte[originalLength];
+        try {
+            int length = 0;
+            while (length < originalLength && !inflater.finished()) {
+                int inflated = inflater.inflate(result, length, originalLength - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != originalLength) {
+                throw new IllegalArgumentException("truncated compressed message, expected " + originalLength
+                    + " bytes but got " + length);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("malformed compressed message", e);
+        }
+        return result;
+    }
+}
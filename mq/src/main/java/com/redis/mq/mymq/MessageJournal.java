@@ -0,0 +1,356 @@
+package com.redis.mq.mymq;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * @author: xushu
+ * @date: 2018/11/8 10:20
+ * @description: 本地预写日志.消息追加到内存映射的段文件中,写满后创建下一个段,
+ * checkpoint文件记录已发送到redis的位置,已发送完的段文件被删除.
+ * 写入只经过page cache,进程崩溃不丢消息,机器掉电时未刷盘的部分可能丢失,通过crc识别
+ * <p>
+ * 记录格式: [记录总长度 int][crc int][分区 int][过期时间 int][消息],crc覆盖分区、过期时间和消息.
+ * 长度最后写入,长度为0表示段内没有更多记录,-1表示段已写满
+ */
+class MessageJournal implements Closeable {
+
+    private static Logger log = LoggerFactory.getLogger(MessageJournal.class);
+
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final int HEADER_SIZE = 16;
+    private static final int END_OF_SEGMENT = -1;
+
+    private final File directory;
+    private final int segmentSize;
+    private final MappedByteBuffer checkpoint;
+
+    /**
+     * 写入位置,只在持有锁时修改
+     */
+    private int writeSegment;
+    private int writePosition;
+    private MappedByteBuffer writeBuffer;
+    /**
+     * 已完整写入的位置(段号 << 32 | 段内位置),读取不超过这个位置
+     */
+    private volatile long committed;
+
+    /**
+     * 读取位置即checkpoint,只由发送线程访问
+     */
+    private int readSegment;
+    private int readPosition;
+    private int mappedReadSegment = -1;
+    private MappedByteBuffer readBuffer;
+
+    private final AtomicLong pending = new AtomicLong();
+
+    /**
+     * 打开日志目录,从checkpoint开始扫描剩余的记录,确定写入位置
+     * @param directory 日志目录,不存在时创建
+     * @param segmentSize 段文件大小
+     */
+    MessageJournal(File directory, int segmentSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("can not create journal directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.checkpoint = map(new File(directory, CHECKPOINT_FILE), Long.BYTES);
+        long position = checkpoint.getLong(0);
+        this.readSegment = segment(position);
+        this.readPosition = position(position);
+
+        List<Integer> segments = segments();
+        for (int segment : segments) {
+            if (segment < readSegment) {
+                delete(segment);
+            }
+        }
+        int lastSegment = segments.isEmpty() ? readSegment : Math.max(readSegment, segments.get(segments.size() - 1));
+        int endPosition = 0;
+        for (int segment = readSegment; segment <= lastSegment; segment++) {
+            if (!segmentFile(segment).exists()) {
+                continue;
+            }
+            endPosition = recover(segment, segment == readSegment ? readPosition : 0);
+        }
+        this.writeSegment = lastSegment;
+        this.writePosition = lastSegment == readSegment ? Math.max(endPosition, readPosition) : endPosition;
+        this.writeBuffer = map(segmentFile(writeSegment), segmentSize);
+        this.committed = pack(writeSegment, writePosition);
+        if (pending.get() > 0) {
+            log.warn("MessageJournal {} has {} unsent messages, replay them", directory, pending.get());
+        }
+    }
+
+    /**
+     * 扫描段内有效的记录并计数
+     * @return 最后一条有效记录的结束位置
+     */
+    private int recover(int segment, int position) throws IOException {
+        MappedByteBuffer buffer = map(segmentFile(segment), segmentSize);
+        while (true) {
+            int size = size(buffer, position);
+            if (size <= 0 || position + size > buffer.capacity() || crc(buffer, position, size) != buffer.getInt(position + 4)) {
+                return position;
+            }
+            pending.incrementAndGet();
+            position += size;
+        }
+    }
+
+    /**
+     * 追加一条记录,当前段放不下时先切换到新段
+     * @param partition 分区
+     * @param seconds 过期时间
+     * @param payload 编码后的消息
+     */
+    synchronized void append(int partition, int seconds, byte[] payload) throws IOException {
+        int size = HEADER_SIZE + payload.length;
+        if (size > segmentSize) {
+            throw new IllegalArgumentException("message size " + payload.length + " exceeds journal segment size " + segmentSize);
+        }
+        if (writePosition + size > writeBuffer.capacity()) {
+            roll();
+        }
+        ByteBuffer record = writeBuffer.duplicate();
+        record.position(writePosition + 8);
+        record.putInt(partition).putInt(seconds).put(payload);
+        writeBuffer.putInt(writePosition + 4, crc(writeBuffer, writePosition, size));
+        writeBuffer.putInt(writePosition, size);
+        writePosition += size;
+        pending.incrementAndGet();
+        committed = pack(writeSegment, writePosition);
+    }
+
+    private void roll() throws IOException {
+        if (writePosition + Integer.BYTES <= writeBuffer.capacity()) {
+            writeBuffer.putInt(writePosition, END_OF_SEGMENT);
+        }
+        MappedByteBuffer next = map(segmentFile(writeSegment + 1), segmentSize);
+        writeBuffer.force();
+        writeBuffer = next;
+        writeSegment++;
+        writePosition = 0;
+        committed = pack(writeSegment, writePosition);
+    }
+
+    /**
+     * 从checkpoint开始读取已写入的记录,不移动checkpoint
+     * @param maxEntries 最多读取的条数
+     * @return
+     */
+    Batch read(int maxEntries) throws IOException {
+        long end = committed;
+        int endSegment = segment(end);
+        int endPosition = position(end);
+        int segment = readSegment;
+        int position = readPosition;
+        List<Entry> entries = new ArrayList<>();
+        boolean skipped = false;
+        while (entries.size() < maxEntries && (segment < endSegment || position < endPosition)) {
+            MappedByteBuffer buffer = readBuffer(segment);
+            int size = size(buffer, position);
+            if (size <= 0 || position + size > buffer.capacity()) {
+                //段已写满,继续读下一个段
+                segment++;
+                position = 0;
+                continue;
+            }
+            if (crc(buffer, position, size) != buffer.getInt(position + 4)) {
+                log.error("MessageJournal {} segment {} corrupted at {}, skip the rest of segment", directory, segment, position);
+                skipped = true;
+                segment++;
+                position = 0;
+                continue;
+            }
+            byte[] payload = new byte[size - HEADER_SIZE];
+            ByteBuffer record = buffer.duplicate();
+            record.position(position + HEADER_SIZE);
+            record.get(payload);
+            entries.add(new Entry(buffer.getInt(position + 8), buffer.getInt(position + 12), payload));
+            position += size;
+        }
+        return new Batch(entries, segment, position, skipped);
+    }
+
+    /**
+     * 批次中的记录已全部发送,移动checkpoint并删除已发送完的段
+     */
+    void acknowledge(Batch batch) {
+        if (batch.segment == readSegment && batch.position == readPosition) {
+            return;
+        }
+        checkpoint.putLong(0, pack(batch.segment, batch.position));
+        for (int segment = readSegment; segment < batch.segment; segment++) {
+            delete(segment);
+        }
+        readSegment = batch.segment;
+        readPosition = batch.position;
+        if (batch.skipped) {
+            //跳过的损坏记录有多少条无法确定,从新的checkpoint重新统计
+            recount();
+        } else {
+            pending.addAndGet(-batch.entries.size());
+        }
+    }
+
+    /**
+     * 重新统计checkpoint之后有效的记录条数,持有锁避免同时追加的记录被漏算或重复计算
+     */
+    private synchronized void recount() {
+        long end = committed;
+        int endSegment = segment(end);
+        int endPosition = position(end);
+        int segment = readSegment;
+        int position = readPosition;
+        long count = 0;
+        try {
+            while (segment < endSegment || position < endPosition) {
+                MappedByteBuffer buffer = readBuffer(segment);
+                int size = size(buffer, position);
+                if (size <= 0 || position + size > buffer.capacity()
+                    || crc(buffer, position, size) != buffer.getInt(position + 4)) {
+                    segment++;
+                    position = 0;
+                    continue;
+                }
+                count++;
+                position += size;
+            }
+        } catch (IOException e) {
+            log.error("MessageJournal {} recount pending failed", directory, e);
+            return;
+        }
+        pending.set(count);
+    }
+
+    /**
+     * 还没有发送到redis的记录条数
+     */
+    long pending() {
+        return pending.get();
+    }
+
+    private MappedByteBuffer readBuffer(int segment) throws IOException {
+        if (segment != mappedReadSegment) {
+            readBuffer = map(segmentFile(segment), segmentSize);
+            mappedReadSegment = segment;
+        }
+        return readBuffer;
+    }
+
+    @Override
+    public synchronized void close() {
+        writeBuffer.force();
+        checkpoint.force();
+    }
+
+    private static int size(ByteBuffer buffer, int position) {
+        return position + Integer.BYTES <= buffer.capacity() ? buffer.getInt(position) : END_OF_SEGMENT;
+    }
+
+    private static int crc(ByteBuffer buffer, int position, int size) {
+        ByteBuffer content = buffer.duplicate();
+        content.position(position + 8);
+        content.limit(position + size);
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * 映射整个文件,文件不存在时创建,比size小时扩展
+     */
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+        }
+    }
+
+    private List<Integer> segments() {
+        List<Integer> segments = new ArrayList<>();
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    segments.add(Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private File segmentFile(int segment) {
+        return new File(directory, String.format("%010d", segment) + SEGMENT_SUFFIX);
+    }
+
+    private void delete(int segment) {
+        File file = segmentFile(segment);
+        if (file.exists() && !file.delete()) {
+            log.warn("MessageJournal can not delete sent segment {}", file);
+        }
+    }
+
+    private static long pack(int segment, int position) {
+        return ((long) segment << 32) | (position & 0xFFFFFFFFL);
+    }
+
+    private static int segment(long packed) {
+        return (int) (packed >>> 32);
+    }
+
+    private static int position(long packed) {
+        return (int) packed;
+    }
+
+    static class Entry {
+        final int partition;
+        final int seconds;
+        final byte[] payload;
+
+        private Entry(int partition, int seconds, byte[] payload) {
+            this.partition = partition;
+            this.seconds = seconds;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * 一批读取的记录,以及读完后的位置
+     */
+    static class Batch {
+        final List<Entry> entries;
+        private final int segment;
+        private final int position;
+        /**
+         * 读取时跳过了损坏的记录
+         */
+        private final boolean skipped;
+
+        private Batch(List<Entry> entries, int segment, int position, boolean skipped) {
+            this.entries = entries;
+            this.segment = segment;
+            this.position = position;
+            this.skipped = skipped;
+        }
+    }
+}
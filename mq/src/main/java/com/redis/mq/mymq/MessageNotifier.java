@@ -0,0 +1,145 @@
+package com.redis.mq.mymq;
+
+import com.redis.mq.utils.RedisCache;
+import com.redis.mq.utils.RedisUnavailableException;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.JedisPubSub;
+
+/**
+ * @author: xushu
+ * @date: 2018/10/16 14:35
+ * @description: 新消息通知.生产者发布消息后向通知频道发送主题名,
+ * 每个jvm只用一个订阅连接接收通知,再唤醒本地等待该主题的消费者
+ */
+class MessageNotifier {
+
+    private static Logger log = LoggerFactory.getLogger(MessageNotifier.class);
+
+    protected static final String CHANNEL = "redisMq:notify";
+    /**
+     * 订阅断开后重新订阅的间隔
+     */
+    private static final long RESUBSCRIBE_INTERVAL = 1000;
+
+    private static final MessageNotifier INSTANCE = new MessageNotifier();
+
+    /**
+     * 主题 -> 通知信号
+     */
+    private final Map<String, Signal> signals = new ConcurrentHashMap<>();
+
+    private volatile boolean started;
+
+    private MessageNotifier() {
+    }
+
+    protected static MessageNotifier getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * 当前主题的通知版本号,读取消息前先记录,读不到消息时用它等待下一次通知,避免丢失唤醒
+     * @param topic
+     * @return
+     */
+    protected long version(String topic) {
+        start();
+        return signal(topic).version();
+    }
+
+    /**
+     * 等待主题的通知版本号发生变化
+     * @param topic
+     * @param version 读取消息前记录的版本号
+     * @param timeout 最长等待时间
+     * @param unit
+     * @return 是否收到了新通知
+     * @throws InterruptedException
+     */
+    protected boolean await(String topic, long version, long timeout, TimeUnit unit) throws InterruptedException {
+        return signal(topic).await(version, unit.toNanos(timeout));
+    }
+
+    private Signal signal(String topic) {
+        return signals.computeIfAbsent(topic, key -> new Signal());
+    }
+
+    private void start() {
+        if (started) {
+            return;
+        }
+        synchronized (this) {
+            if (started) {
+                return;
+            }
+            Thread thread = new Thread(this::subscribe, "redisMq-notifier");
+            thread.setDaemon(true);
+            thread.start();
+            started = true;
+        }
+    }
+
+    private void subscribe() {
+        JedisPubSub pubSub = new JedisPubSub() {
+            @Override
+            public void onMessage(String channel, String topic) {
+                Signal signal = signals.get(topic);
+                if (signal != null) {
+                    signal.signal();
+                }
+            }
+
+            @Override
+            public void onSubscribe(String channel, int subscribedChannels) {
+                //订阅断开期间可能错过通知,重新订阅后唤醒所有等待者重新检查
+                signals.values().forEach(Signal::signal);
+            }
+        };
+        while (true) {
+            //subscribe会一直阻塞,直到连接断开
+            try {
+                RedisCache.subscribe(pubSub, CHANNEL);
+            } catch (RedisUnavailableException e) {
+                //熔断期间不订阅,等待间隔后重试
+            }
+            log.warn("MessageNotifier subscription lost, resubscribe after {}ms", RESUBSCRIBE_INTERVAL);
+            try {
+                Thread.sleep(RESUBSCRIBE_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static class Signal {
+        private long version;
+
+        private synchronized long version() {
+            return version;
+        }
+
+        private synchronized void signal() {
+            version++;
+            notifyAll();
+        }
+
+        private synchronized boolean await(long lastVersion, long nanos) throws InterruptedException {
+            long deadline = System.nanoTime() + nanos;
+            while (version == lastVersion) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return true;
+        }
+    }
+}
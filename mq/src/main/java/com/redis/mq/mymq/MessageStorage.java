@@ -0,0 +1,185 @@
+package com.redis.mq.mymq;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author: xushu
+ * @date: 2018/10/18 11:20
+ * @description: 主题消息在redis中的存储引擎.消息以编码后的二进制形式存取,编码方式由MessageCodec决定
+ */
+interface MessageStorage {
+
+    /**
+     * 发布一条消息
+     * @param message 消息
+     * @param seconds 过期时间
+     * @return 消息id,失败返回null
+     */
+    Integer publish(byte[] message, int seconds);
+
+    /**
+     * 批量发布消息
+     * @param messages 消息
+     * @param seconds 过期时间
+     * @return 与messages一一对应的消息id,发布失败的位置为null
+     */
+    List<Integer> publishAll(List<byte[]> messages, int seconds);
+
+    /**
+     * 读取订阅方最多maxMessages条未读消息,并推进订阅方的读取位置
+     * @param subscriber 订阅方
+     * @param maxMessages
+     * @return 消息id -> 消息,按id升序;没有未读消息或读取失败时为空
+     */
+    Map<Integer, byte[]> read(String subscriber, int maxMessages);
+
+    /**
+     * 读取订阅方最多maxMessages条未读消息并推进读取位置,同时把读取到的消息记录为处理中.
+     * 到deadline还没有确认的消息由redeliver重新投递
+     * @param subscriber 订阅方
+     * @param maxMessages
+     * @param deadline 确认期限(毫秒)
+     * @return 消息id -> 消息,按id升序
+     */
+    Map<Integer, byte[]> read(String subscriber, int maxMessages, long deadline);
+
+    /**
+     * 确认消息已处理完,不再重新投递
+     * @param subscriber 订阅方
+     * @param ids 消息id
+     * @return 是否确认成功
+     */
+    boolean ack(String subscriber, List<Integer> ids);
+
+    /**
+     * 取出超过确认期限的处理中消息,期限顺延到deadline后重新投递
+     * @param subscriber 订阅方
+     * @param now 当前时间(毫秒)
+     * @param deadline 新的确认期限(毫秒)
+     * @param maxMessages 最多取出条数
+     * @return 消息id -> 消息,按id升序;已过期或已删除的消息直接确认,不再返回
+     */
+    Map<Integer, byte[]> redeliver(String subscriber, long now, long deadline, int maxMessages);
+
+    /**
+     * 读取offset之后最多maxMessages条消息,不推进任何订阅方的读取位置
+     * @param offset 从该id之后开始读取
+     * @param maxMessages
+     * @return 消息id -> 消息,id从offset+1开始连续,已过期的消息对应null;读取失败时为空
+     */
+    Map<Integer, byte[]> fetch(int offset, int maxMessages);
+
+    /**
+     * 订阅方已读取的最后一条消息的id,订阅方第一次读取时从最新的消息开始
+     * @param subscriber 订阅方
+     * @return
+     */
+    int committed(String subscriber);
+
+    /**
+     * 订阅方已读取的最后一条消息的id
+     * @param subscriber 订阅方
+     * @param initial 订阅方还没有读取位置时记录并返回的位置
+     * @return
+     */
+    int committed(String subscriber, int initial);
+
+    /**
+     * 提交订阅方已读取的最后一条消息的id
+     * @param subscriber 订阅方
+     * @param offset
+     * @return 是否提交成功
+     */
+    boolean commit(String subscriber, int offset);
+
+    /**
+     * 订阅方的下一条未读消息,不推进读取位置
+     * @param subscriber 订阅方
+     * @return
+     */
+    byte[] peek(String subscriber);
+
+    /**
+     * 订阅方可读消息的个数
+     * @param subscriber 订阅方
+     * @return
+     */
+    int unreadMessages(String subscriber);
+
+    /**
+     * 已分配的最大消息id
+     * @return
+     */
+    int topicSize();
+
+    /**
+     * 所有订阅方已读取的最后一条消息的id
+     * @return 订阅方 -> offset,查询失败时返回null
+     */
+    Map<String, Integer> offsets();
+
+    /**
+     * 删除id小于等于offset的消息,从上次删除到的位置继续,每次调用最多删除一段
+     * @param offset
+     * @return 本次删除的id个数
+     */
+    int trim(int offset);
+
+    /**
+     * 已删除到的消息id
+     * @return 还没有删除过或查询失败时返回0
+     */
+    int trimmed();
+
+    /**
+     * 写入一条延迟消息,到期后由promote转移到主题中
+     * @param message 消息
+     * @param dueTime 到期时间(毫秒)
+     * @param seconds 转移到主题后的过期时间
+     * @return 是否写入成功
+     */
+    boolean schedule(byte[] message, long dueTime, int seconds);
+
+    /**
+     * 把到期时间不晚于now的延迟消息按到期顺序转移到主题中,分配正常的消息id
+     * @param now 当前时间(毫秒)
+     * @param maxMessages 最多转移条数
+     * @return 转移的条数
+     */
+    int promote(long now, int maxMessages);
+
+    /**
+     * 还没有转移到主题中的延迟消息条数
+     * @return
+     */
+    int delayedMessages();
+
+    /**
+     * 把处理失败的消息写入订阅方的重试队列,到期后只有该订阅方会重新读取
+     * @param subscriber 订阅方
+     * @param messages 消息
+     * @param dueTime 重试时间(毫秒)
+     * @return 是否写入成功
+     */
+    boolean retry(String subscriber, List<byte[]> messages, long dueTime);
+
+    /**
+     * 取出订阅方重试队列中到期时间不晚于now的消息,取出后即从重试队列中删除
+     * @param subscriber 订阅方
+     * @param now 当前时间(毫秒)
+     * @param maxMessages 最多取出条数
+     * @return 按到期时间排序的消息,读取失败时为空
+     */
+    List<byte[]> claimRetries(String subscriber, long now, int maxMessages);
+
+    static MessageStorage create(String topic, int partition, TopicConfig config) {
+        if (config.getStorageType() == StorageType.STREAM) {
+            return new StreamStorage(topic, partition);
+        }
+        if (config.getStorageType() == StorageType.SEGMENT) {
+            return new SegmentStorage(topic, partition);
+        }
+        return new KeyValueStorage(topic, partition, config.getPublishMode(), config.getConsumeMode());
+    }
+}
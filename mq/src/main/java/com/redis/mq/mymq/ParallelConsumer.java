@@ -0,0 +1,225 @@
+package com.redis.mq.mymq;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * @author: xushu
+ * @date: 2018/10/26 15:12
+ * @description: 并发消费.消息按路由key分配到固定的工作线程,相同key的消息按顺序处理,不同key的消息并行处理;
+ * 每个分区只提交所有之前的消息都已处理完的位置,进程崩溃后从未处理完的消息重新开始(至少一次).
+ * 读取位置在本地推进,所以一个订阅方的每个分区同一时间只能由一个实例消费,多个实例需要通过ConsumerGroup分配分区
+ */
+public class ParallelConsumer implements AutoCloseable {
+
+    private static Logger log = LoggerFactory.getLogger(ParallelConsumer.class);
+
+    /**
+     * 每次从一个分区读取的消息条数
+     */
+    private static final int FETCH_SIZE = 100;
+    /**
+     * 每个工作线程最多积压的消息条数,超过时暂停读取
+     */
+    private static final int MAX_PENDING_PER_WORKER = 100;
+
+    private Consumer consumer;
+    /**
+     * 工作线程,每个线程按提交顺序处理消息
+     */
+    private ExecutorService[] workers;
+    /**
+     * 已读取但未处理完的消息数量上限
+     */
+    private Semaphore pending;
+
+    /**
+     * @param consumer 读取消息的消费者,读取其分配到的分区
+     * @param workers 工作线程数
+     */
+    public ParallelConsumer(Consumer consumer, int workers) {
+        this.consumer = consumer;
+        this.workers = new ExecutorService[workers];
+        for (int i = 0; i < workers; i++) {
+            String name = "redisMq-worker-" + i;
+            this.workers[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        this.pending = new Semaphore(workers * MAX_PENDING_PER_WORKER);
+    }
+
+    /**
+     * 消费分配到的分区中所有未读消息,返回时这些消息都已处理完并已提交
+     * @param callback
+     */
+    public void consume(Callback callback) {
+        int[] partitions = consumer.assignment();
+        CommitTracker[] trackers = new CommitTracker[partitions.length];
+        int[] fetched = new int[partitions.length];
+        for (int i = 0; i < partitions.length; i++) {
+            fetched[i] = consumer.committed(partitions[i]);
+            trackers[i] = new CommitTracker(fetched[i]);
+        }
+        //到期的重试消息不属于任何读取位置,处理完即可
+        List<RedisMessageModel> retries;
+        do {
+            retries = consumer.claimRetries(FETCH_SIZE);
+            for (RedisMessageModel retry : retries) {
+                dispatch(retry, null, callback);
+            }
+        } while (retries.size() >= FETCH_SIZE);
+        boolean hasMore = true;
+        while (hasMore) {
+            hasMore = false;
+            //每轮从每个分区读取一批,避免某个分区独占工作线程
+            for (int i = 0; i < partitions.length; i++) {
+                Map<Integer, byte[]> messages = consumer.fetch(partitions[i], fetched[i], FETCH_SIZE);
+                for (Map.Entry<Integer, byte[]> message : messages.entrySet()) {
+                    dispatch(partitions[i], message.getKey(), message.getValue(), trackers[i], callback);
+                    fetched[i] = message.getKey();
+                }
+                hasMore |= !messages.isEmpty();
+                commit(partitions[i], trackers[i]);
+            }
+        }
+        for (int i = 0; i < partitions.length; i++) {
+            trackers[i].awaitCompleted(fetched[i]);
+            commit(partitions[i], trackers[i]);
+        }
+    }
+
+    private void dispatch(int partition, int id, byte[] message, CommitTracker tracker, Callback callback) {
+        if (message == null) {
+            //已过期的消息直接视为处理完
+            tracker.complete(id);
+            return;
+        }
+        dispatch(consumer.decode(partition, id, message), tracker, callback);
+    }
+
+    /**
+     * @param tracker 为null时不记录处理进度
+     */
+    private void dispatch(RedisMessageModel messageModel, CommitTracker tracker, Callback callback) {
+        Integer id = messageModel.getId();
+        pending.acquireUninterruptibly();
+        try {
+            workers[worker(messageModel)].execute(() -> {
+                try {
+                    callback.handle(messageModel);
+                } catch (Exception e) {
+                    log.error("ParallelConsumer callback hanle failed, message=" + messageModel, e);
+                    consumer.reject(messageModel, e);
+                } finally {
+                    pending.release();
+                    if (tracker != null) {
+                        tracker.complete(id);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            //没有交给工作线程时归还许可,否则许可耗尽后读取线程一直阻塞
+            pending.release();
+            throw e;
+        }
+    }
+
+    /**
+     * 相同路由key的消息总是交给同一个工作线程.死信重放的消息可能没有id
+     */
+    private int worker(RedisMessageModel message) {
+        int hash = message.getKey() != null ? message.getKey().hashCode() : Objects.hashCode(message.getId());
+        return (hash & Integer.MAX_VALUE) % workers.length;
+    }
+
+    private void commit(int partition, CommitTracker tracker) {
+        int offset = tracker.committable();
+        if (offset > tracker.committed && consumer.commit(partition, offset)) {
+            tracker.committed = offset;
+        }
+    }
+
+    @Override
+    public void close() {
+        for (ExecutorService worker : workers) {
+            worker.shutdown();
+        }
+        for (ExecutorService worker : workers) {
+            try {
+                worker.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * 记录一个分区中已处理完的消息,计算可以提交的位置:所有不大于该位置的消息都已处理完
+     */
+    private static class CommitTracker {
+        /**
+         * 已提交的位置,只在读取线程中访问
+         */
+        private int committed;
+        /**
+         * 可以提交的位置
+         */
+        private int completed;
+        /**
+         * 已处理完但前面还有消息未处理完的消息id
+         */
+        private final BitSet done = new BitSet();
+
+        private CommitTracker(int committed) {
+            this.committed = committed;
+            this.completed = committed;
+        }
+
+        private synchronized void complete(int id) {
+            if (id <= completed) {
+                //重复投递的消息已经记录过
+                return;
+            }
+            done.set(id - completed - 1);
+            int advance = done.nextClearBit(0);
+            if (advance > 0) {
+                completed += advance;
+                BitSet rest = done.get(advance, Math.max(advance, done.length()));
+                done.clear();
+                done.or(rest);
+                notifyAll();
+            }
+        }
+
+        private synchronized int committable() {
+            return completed;
+        }
+
+        private synchronized void awaitCompleted(int id) {
+            boolean interrupted = false;
+            while (completed < id) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.redis.mq.mymq;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * @author: xushu
+ * @date: 2018/11/9 10:40
+ * @description: 预读消费.后台线程批量读取分配到的分区中的消息并解码,放入有界的本地缓冲区,
+ * 处理线程只从缓冲区取消息,处理消息和读取下一批消息同时进行.
+ * 读取位置在本地推进,只提交已处理完的位置,由后台线程批量提交,进程崩溃后从未处理完的消息重新开始(至少一次).
+ * 到期的重试消息取出即从重试队列删除,不能放进缓冲区等待,由处理线程在处理时取出.
+ * 和ParallelConsumer一样,一个订阅方的每个分区同一时间只能由一个实例消费,且只能由一个线程调用consume
+ */
+public class PrefetchingConsumer implements AutoCloseable {
+
+    private static Logger log = LoggerFactory.getLogger(PrefetchingConsumer.class);
+
+    /**
+     * 每次从一个分区读取的消息条数
+     */
+    private static final int FETCH_SIZE = 100;
+    /**
+     * 默认缓冲区大小
+     */
+    private static final int DEFAULT_BUFFER_SIZE = 1000;
+    /**
+     * 没有新消息时等待生产者通知的最长时间
+     */
+    private static final long IDLE_WAIT = 100;
+    /**
+     * 检查到期重试消息的间隔 1s
+     */
+    private static final long RETRY_CHECK_INTERVAL = 1000;
+
+    private final Consumer consumer;
+    private final String topic;
+    /**
+     * 读取的分区,创建时确定
+     */
+    private final int[] partitions;
+    private final BlockingQueue<Prefetched> buffer;
+    /**
+     * 每个分区已读取到本地的最后一条消息的id,只在读取线程中访问
+     */
+    private final int[] fetched;
+    /**
+     * 每个分区已处理完的最后一条消息的id,由处理线程推进
+     */
+    private final AtomicIntegerArray completed;
+    /**
+     * 每个分区已提交的位置
+     */
+    private final int[] committed;
+    private final Thread fetcher;
+    private volatile boolean closed;
+    /**
+     * 下次检查到期重试消息的时间,只在处理线程中访问
+     */
+    private long nextRetryCheck;
+
+    public PrefetchingConsumer(Consumer consumer) {
+        this(consumer, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param consumer 读取消息的消费者,读取其当前分配到的分区
+     * @param bufferSize 本地最多缓存的消息条数
+     */
+    public PrefetchingConsumer(Consumer consumer, int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize must be positive");
+        }
+        this.consumer = consumer;
+        this.topic = consumer.topic();
+        this.partitions = consumer.assignment().clone();
+        this.buffer = new ArrayBlockingQueue<>(bufferSize);
+        this.fetched = new int[partitions.length];
+        this.completed = new AtomicIntegerArray(partitions.length);
+        this.committed = new int[partitions.length];
+        for (int i = 0; i < partitions.length; i++) {
+            fetched[i] = consumer.committed(partitions[i]);
+            completed.set(i, fetched[i]);
+            committed[i] = fetched[i];
+        }
+        this.fetcher = new Thread(this::fetchLoop, "redisMq-prefetch-" + topic);
+        this.fetcher.setDaemon(true);
+        this.fetcher.start();
+    }
+
+    /**
+     * 处理到期的重试消息和缓冲区中的消息,处理失败的消息按失败策略处理.
+     * 超过timeout没有新消息时返回,返回前提交已处理完的位置
+     * @param callback
+     * @param timeout 等待新消息的最长时间
+     * @param unit
+     */
+    public void consume(Callback callback, long timeout, TimeUnit unit) {
+        long timeoutNanos = unit.toNanos(timeout);
+        long retryCheckNanos = TimeUnit.MILLISECONDS.toNanos(RETRY_CHECK_INTERVAL);
+        long deadline = System.nanoTime() + timeoutNanos;
+        try {
+            while (true) {
+                if (handleRetries(callback)) {
+                    deadline = System.nanoTime() + timeoutNanos;
+                }
+                long remaining = deadline - System.nanoTime();
+                //等待时不超过重试检查间隔,等待期间到期的重试消息不会被耽误到下一次consume
+                Prefetched prefetched = buffer.poll(Math.min(remaining, retryCheckNanos), TimeUnit.NANOSECONDS);
+                if (prefetched == null) {
+                    if (remaining <= retryCheckNanos) {
+                        break;
+                    }
+                    continue;
+                }
+                if (prefetched.message != null) {
+                    handle(callback, prefetched.message);
+                }
+                completed.set(prefetched.index, prefetched.id);
+                deadline = System.nanoTime() + timeoutNanos;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        commit();
+    }
+
+    /**
+     * 取出并立即处理到期的重试消息
+     * @return 是否处理了重试消息
+     */
+    private boolean handleRetries(Callback callback) {
+        if (System.currentTimeMillis() < nextRetryCheck) {
+            return false;
+        }
+        List<RedisMessageModel> retries = consumer.claimRetries(FETCH_SIZE);
+        for (RedisMessageModel retry : retries) {
+            handle(callback, retry);
+        }
+        if (retries.size() < FETCH_SIZE) {
+            nextRetryCheck = System.currentTimeMillis() + RETRY_CHECK_INTERVAL;
+        }
+        return !retries.isEmpty();
+    }
+
+    private void handle(Callback callback, RedisMessageModel message) {
+        try {
+            callback.handle(message);
+        } catch (Exception e) {
+            log.error("PrefetchingConsumer callback hanle failed, message=" + message, e);
+            consumer.reject(message, e);
+        }
+    }
+
+    private void fetchLoop() {
+        MessageNotifier notifier = MessageNotifier.getInstance();
+        while (!closed) {
+            try {
+                //先记录通知版本号再读取,读取之后到达的通知不会丢失
+                long version = notifier.version(topic);
+                boolean fetchedAny = false;
+                for (int i = 0; i < partitions.length && !closed; i++) {
+                    Map<Integer, byte[]> messages = consumer.fetch(partitions[i], fetched[i], Math.min(FETCH_SIZE, capacity()));
+                    for (Map.Entry<Integer, byte[]> message : messages.entrySet()) {
+                        //已过期的消息也放入缓冲区,处理线程越过它们时推进提交位置
+                        RedisMessageModel messageModel = message.getValue() == null ? null
+                            : consumer.decode(partitions[i], message.getKey(), message.getValue());
+                        buffer.put(new Prefetched(messageModel, i, message.getKey()));
+                        fetched[i] = message.getKey();
+                    }
+                    fetchedAny |= !messages.isEmpty();
+                }
+                commit();
+                if (!fetchedAny) {
+                    notifier.await(topic, version, IDLE_WAIT, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                log.error("PrefetchingConsumer fetch failed, topic=" + topic, e);
+                try {
+                    Thread.sleep(IDLE_WAIT);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 缓冲区已满时至少读取一条,放入时阻塞等待处理线程
+     */
+    private int capacity() {
+        return Math.max(1, buffer.remainingCapacity());
+    }
+
+    /**
+     * 提交每个分区已处理完的位置
+     */
+    private synchronized void commit() {
+        for (int i = 0; i < partitions.length; i++) {
+            int offset = completed.get(i);
+            if (offset > committed[i] && consumer.commit(partitions[i], offset)) {
+                committed[i] = offset;
+            }
+        }
+    }
+
+    /**
+     * 已读取到本地但还没有处理的消息条数
+     * @return
+     */
+    public int bufferedMessages() {
+        return buffer.size();
+    }
+
+    /**
+     * 停止读取并提交已处理完的位置,缓冲区中未处理的消息下次从redis重新读取
+     */
+    @Override
+    public void close() {
+        closed = true;
+        fetcher.interrupt();
+        try {
+            fetcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        buffer.clear();
+        commit();
+    }
+
+    private static class Prefetched {
+        /**
+         * 消息,已过期时为null
+         */
+        private final RedisMessageModel message;
+        /**
+         * 分区在partitions中的下标
+         */
+        private final int index;
+        private final int id;
+
+        private Prefetched(RedisMessageModel message, int index, int id) {
+            this.message = message;
+            this.index = index;
+            this.id = id;
+        }
+    }
+}
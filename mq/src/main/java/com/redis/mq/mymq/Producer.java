@@ -1,34 +1,76 @@
 package com.redis.mq.mymq;
 
-import com.alibaba.fastjson.JSON;
-
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author: xushu
  * @date: 2018/10/8 17:26
- * @description: 生产者
+ * @description: 生产者.创建后不可变,可以按主题缓存并被多个线程共享.
+ * redis出错时发布方法返回false或null;开启熔断(redis.circuit.enabled)后,熔断器打开期间所有方法
+ * 不再等待超时,直接抛出RedisUnavailableException,调用方可以据此降级或稍后重试
  */
 public class Producer {
-    protected static final String TOPIC_MESSAGE_CACHETYPE = "queueId_message";
-    protected static final String TOPIC_COUNT_CACHETYPE = "key_count";
     /**
      * 默认过期时间1天
      */
     protected static final int DEFALUT_EXPIRETIME = 60 * 60 * 24;
 
     /**
-     * 主题总数队列
+     * 每个分区的消息存储
+     */
+    private final MessageStorage[] messageStorages;
+    /**
+     * 没有路由key的消息轮流发往各个分区
+     */
+    private final AtomicInteger nextPartition = new AtomicInteger();
+    /**
+     * 消息编码
      */
-    private RedisQueue countRedisQueue;
+    private final MessageCodec codec;
     /**
-     * 主题消息队列
+     * 压缩阈值
      */
-    private RedisQueue messageRedisQueue;
+    private final int compressThreshold;
 
     public Producer(String topic) {
-        this.countRedisQueue = new RedisQueue(topic, TOPIC_COUNT_CACHETYPE);
-        this.messageRedisQueue = new RedisQueue(topic, TOPIC_MESSAGE_CACHETYPE);
+        this(topic, PublishMode.TRANSACTION);
+    }
+
+    public Producer(String topic, PublishMode publishMode) {
+        this(topic, StorageType.KEY_VALUE, publishMode);
+    }
+
+    public Producer(String topic, StorageType storageType) {
+        this(topic, storageType, PublishMode.TRANSACTION);
+    }
+
+    /**
+     * 主题的分区数在创建时读取,需要先通过TopicPartitions声明分区
+     * @param topic 主题
+     * @param storageType 存储方式
+     * @param publishMode 发布方式,只对KEY_VALUE存储生效,STREAM存储总是通过脚本发布
+     */
+    public Producer(String topic, StorageType storageType, PublishMode publishMode) {
+        this(topic, new TopicConfig().setStorageType(storageType).setPublishMode(publishMode));
+    }
+
+    /**
+     * 主题的分区数在创建时读取,需要先通过TopicPartitions声明分区
+     * @param topic 主题
+     * @param config 存储方式、发布方式和消息编码
+     */
+    public Producer(String topic, TopicConfig config) {
+        int partitions = TopicPartitions.partitions(topic);
+        this.messageStorages = new MessageStorage[partitions];
+        for (int partition = 0; partition < partitions; partition++) {
+            this.messageStorages[partition] = MessageStorage.create(topic, partition, config);
+        }
+        this.codec = config.getCodec();
+        this.compressThreshold = config.getCompressThreshold();
     }
 
     /**
@@ -45,36 +87,120 @@ public class Producer {
      * @param seconds 过期时间
      */
     public boolean publish(final RedisMessageModel message, int seconds) {
-        //在redis事务下发布相关消息
-        return exec(JSON.toJSONString(message), seconds) != null;
+        return messageStorages[partition(message)].publish(encode(message), seconds) != null;
+    }
+
+    /**
+     * 批量发布消息,消息默认过期时间
+     * @param messages 消息
+     * @return 与messages一一对应的消息id,发布失败的位置为null
+     */
+    public List<Integer> publishAll(final List<RedisMessageModel> messages) {
+        return publishAll(messages, DEFALUT_EXPIRETIME);
+    }
+
+    /**
+     * 批量发布消息,按分区分组,每批消息预留一段连续的id,同一分区的所有批次在一次管道中发送
+     * @param messages 消息
+     * @param seconds 过期时间
+     * @return 与messages一一对应的消息id(分区内的id),发布失败的位置为null
+     */
+    public List<Integer> publishAll(final List<RedisMessageModel> messages, int seconds) {
+        List<List<Integer>> positions = new ArrayList<>(messageStorages.length);
+        List<List<byte[]>> payloads = new ArrayList<>(messageStorages.length);
+        for (int partition = 0; partition < messageStorages.length; partition++) {
+            positions.add(new ArrayList<>());
+            payloads.add(new ArrayList<>());
+        }
+        for (int i = 0; i < messages.size(); i++) {
+            int partition = partition(messages.get(i));
+            positions.get(partition).add(i);
+            payloads.get(partition).add(encode(messages.get(i)));
+        }
+        List<Integer> ids = new ArrayList<>(Collections.nCopies(messages.size(), null));
+        for (int partition = 0; partition < messageStorages.length; partition++) {
+            if (payloads.get(partition).isEmpty()) {
+                continue;
+            }
+            List<Integer> partitionIds = messageStorages[partition].publishAll(payloads.get(partition), seconds);
+            for (int i = 0; i < partitionIds.size(); i++) {
+                ids.set(positions.get(partition).get(i), partitionIds.get(i));
+            }
+        }
+        return ids;
     }
 
-    private List<Object> exec(final String message, int seconds) {
-        return RedisQueue.execOnSameRedisConn(redisTransaction -> {
-            //监控消息总条数.如果其他客户端进行了修改.则本次事务取消
-            redisTransaction.watch(countRedisQueue);
-            Integer lastMessageId = getNextMessageId();
-            redisTransaction.multi();
-            //记录消息总条数
-            redisTransaction.set(countRedisQueue, lastMessageId.toString());
-            //具体消息
-            redisTransaction.set(messageRedisQueue.cat(lastMessageId), message, seconds);
-            return redisTransaction.exec();
-        });
+    /**
+     * 发布延迟消息,到达指定时间后才对消费者可见,消息默认过期时间
+     * @param message 消息
+     * @param timestamp 可见时间(毫秒时间戳)
+     */
+    public boolean publishAt(final RedisMessageModel message, long timestamp) {
+        return publishAt(message, timestamp, DEFALUT_EXPIRETIME);
+    }
+
+    /**
+     * 发布延迟消息.消息先写入分区的延迟消息zset,到期后由DelayedMessagePromoter转移到主题中,
+     * 转移时才分配消息id,过期时间也从转移时开始计算
+     * @param message 消息
+     * @param timestamp 可见时间(毫秒时间戳),与DelayedMessagePromoter所在机器的时钟比较
+     * @param seconds 过期时间
+     */
+    public boolean publishAt(final RedisMessageModel message, long timestamp, int seconds) {
+        return messageStorages[partition(message)].schedule(encode(message), timestamp, seconds);
+    }
+
+    /**
+     * 发布延迟消息,延迟一段时间后才对消费者可见,消息默认过期时间
+     * @param message 消息
+     * @param delay 延迟时间
+     * @param unit
+     */
+    public boolean publishDelayed(final RedisMessageModel message, long delay, TimeUnit unit) {
+        return publishAt(message, System.currentTimeMillis() + unit.toMillis(delay));
+    }
+
+    /**
+     * 批量发布已编码的消息到指定分区
+     * @param partition 分区
+     * @param payloads 编码后的消息
+     * @param seconds 过期时间
+     * @return 与payloads一一对应的消息id,发布失败的位置为null
+     */
+    protected List<Integer> publishEncoded(int partition, List<byte[]> payloads, int seconds) {
+        return messageStorages[partition].publishAll(payloads, seconds);
     }
 
     /**
-     * 获取下一条消息id
+     * 主题的分区数
      * @return
      */
-    protected Integer getNextMessageId() {
-        final String slastMessageId = countRedisQueue.get();
-        Integer lastMessageId = 0;
-        if (slastMessageId != null) {
-            lastMessageId = Integer.parseInt(slastMessageId);
+    protected int partitions() {
+        return messageStorages.length;
+    }
+
+    /**
+     * 编码消息,超过压缩阈值时压缩
+     * @param message
+     * @return
+     */
+    protected byte[] encode(RedisMessageModel message) {
+        return MessageCompression.compress(codec.encode(message), compressThreshold);
+    }
+
+    /**
+     * 消息发往的分区.有路由key时按key选择分区,保证同一key的消息有序,否则轮流发往各个分区
+     * @param message
+     * @return
+     */
+    public int partition(RedisMessageModel message) {
+        if (messageStorages.length == 1) {
+            return 0;
+        }
+        if (message.getKey() != null) {
+            return TopicPartitions.partition(message.getKey(), messageStorages.length);
         }
-        lastMessageId++;
-        return lastMessageId;
+        return (nextPartition.getAndIncrement() & Integer.MAX_VALUE) % messageStorages.length;
     }
 
 }
@@ -0,0 +1,17 @@
+package com.redis.mq.mymq;
+
+/**
+ * @author: xushu
+ * @date: 2018/10/8 17:26
+ * @description: 消息发布方式
+ */
+public enum PublishMode {
+    /**
+     * watch主题总数后在redis事务中写入消息,并发写同一主题时事务会被取消
+     */
+    TRANSACTION,
+    /**
+     * 在redis端通过lua脚本原子地分配id并写入消息,一次往返,没有watch竞争
+     */
+    SCRIPT
+}
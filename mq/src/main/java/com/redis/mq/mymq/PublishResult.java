@@ -0,0 +1,32 @@
+package com.redis.mq.mymq;
+
+/**
+ * @author: xushu
+ * @date: 2018/11/1 15:30
+ * @description: 异步发布的结果,消息所在的分区和分区内的消息id,两者一起才能定位一条消息
+ */
+public class PublishResult {
+
+    /** 消息所在分区 */
+    private final int partition;
+    /** 分区内的消息id */
+    private final int id;
+
+    public PublishResult(int partition, int id) {
+        this.partition = partition;
+        this.id = id;
+    }
+
+    public int getPartition() {
+        return partition;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return "PublishResult{partition=" + partition + ", id=" + id + "}";
+    }
+}
@@ -22,6 +22,12 @@ public class RedisMessageModel implements Serializable{
     private String topic;
     /** 附加信息 */
     private String extraInfo;
+    /** 路由key,相同key的消息发往同一分区,保证顺序 */
+    private String key;
+    /** 消息所在分区 */
+    private Integer partition;
+    /** 处理失败后已重试的次数 */
+    private Integer retries;
 
     public Integer getId() {
         return id;
@@ -71,8 +77,33 @@ public class RedisMessageModel implements Serializable{
         this.extraInfo = extraInfo;
     }
 
+    public String getKey() {
+        return key;
+    }
+
+    public void setKey(String key) {
+        this.key = key;
+    }
+
+    public Integer getPartition() {
+        return partition;
+    }
+
+    public void setPartition(Integer partition) {
+        this.partition = partition;
+    }
+
+    public Integer getRetries() {
+        return retries;
+    }
+
+    public void setRetries(Integer retries) {
+        this.retries = retries;
+    }
+
     @Override public String toString() {
         return "RedisMessageModel{" + "id=" + id + ", createTime=" + createTime + ", updateTime=" + updateTime
-            + ", content='" + content + '\'' + ", topic='" + topic + '\'' + ", extraInfo='" + extraInfo + '\'' + '}';
+            + ", content='" + content + '\'' + ", topic='" + topic + '\'' + ", extraInfo='" + extraInfo + '\'' + ", key='" + key
+            + '\'' + ", partition=" + partition + ", retries=" + retries + '}';
     }
 }
@@ -7,57 +7,105 @@ import java.util.Set;
 
 import org.apache.commons.lang.StringUtils;
 import redis.clients.jedis.Response;
+import redis.clients.jedis.StreamEntryID;
 import redis.clients.jedis.Tuple;
+import redis.clients.jedis.util.SafeEncoder;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.function.Function;
 
 /**
  * @author: xushu
  * @date: 2018/10/9 15:50
- * @description: 自定义的redisQueue
+ * @description: 自定义的redisQueue.创建后不可变,key在创建时确定,可以被多个线程共享
  */
 public class RedisQueue {
 
     private static final String PREFIX = "redisMq:";
     private static final String REDIS_KEY = "all";
 
-    private String topicPrefix;
-    private String cacheType;
-    private String key;
-    private String sb;
+    private final String topicPrefix;
+    private final String cacheType;
+    private final String key;
+    /**
+     * 公共前缀,如 redisMq:topic:queueId_message:,创建时编码一次
+     */
+    private final String keyPrefix;
+    private final byte[] keyPrefixBytes;
+    /**
+     * 完整的key,创建时生成一次
+     */
+    private final String fullKey;
+    private final byte[] fullKeyBytes;
 
     protected RedisQueue(String topic, String cacheType) {
-        this.topicPrefix = PREFIX + topic;
-        this.cacheType = cacheType;
+        this(topic, cacheType, null);
     }
 
     protected RedisQueue(String topic, String cacheType, String key) {
         this.topicPrefix = PREFIX + topic;
         this.cacheType = cacheType;
-        this.key = key;
+        this.key = StringUtils.isNotEmpty(key) ? key : REDIS_KEY;
+        this.keyPrefix = RedisCache.generateFullKey(topicPrefix, cacheType, "");
+        this.keyPrefixBytes = SafeEncoder.encode(keyPrefix);
+        this.fullKey = keyPrefix + this.key;
+        this.fullKeyBytes = SafeEncoder.encode(fullKey);
     }
 
     private String key() {
-        if (StringUtils.isNotEmpty(key)) {
-            return key;
-        }
-        if (StringUtils.isEmpty(sb)) {
-            return REDIS_KEY;
-        }
-        String generatedKey = sb;
-        sb = null;
-        return generatedKey;
+        return key;
+    }
+
+    /**
+     * 完整的redis key
+     * @return
+     */
+    protected String fullKey() {
+        return fullKey;
     }
 
-    protected RedisQueue cat(String key) {
-        this.sb = key;
-        return this;
+    /**
+     * 当前队列下所有key的公共前缀,如 redisMq:topic:queueId_message:
+     * @return
+     */
+    protected String keyPrefix() {
+        return keyPrefix;
     }
 
-    protected RedisQueue cat(Integer key) {
-        this.sb = key + "";
-        return this;
+    /**
+     * 编码好的公共前缀,调用方不能修改
+     * @return
+     */
+    protected byte[] keyPrefixBytes() {
+        return keyPrefixBytes;
+    }
+
+    /**
+     * 以数字id结尾的完整key.在编码好的前缀后直接写入id的十进制数字,
+     * 不经过字符串拼接和编码,只分配结果数组本身
+     * @param id
+     * @return
+     */
+    protected byte[] binaryKey(int id) {
+        int digits = 1;
+        for (long rest = Math.abs((long) id) / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        int length = keyPrefixBytes.length + digits + (id < 0 ? 1 : 0);
+        byte[] fullKey = new byte[length];
+        System.arraycopy(keyPrefixBytes, 0, fullKey, 0, keyPrefixBytes.length);
+        if (id < 0) {
+            fullKey[keyPrefixBytes.length] = '-';
+        }
+        long rest = Math.abs((long) id);
+        for (int i = length - 1; i >= length - digits; i--) {
+            fullKey[i] = (byte) ('0' + rest % 10);
+            rest /= 10;
+        }
+        return fullKey;
     }
 
     /**
@@ -68,6 +116,86 @@ public class RedisQueue {
         return RedisCache.get(topicPrefix, cacheType, key());
     }
 
+    protected byte[] getBytes(int id) {
+        return RedisCache.getBytes(binaryKey(id));
+    }
+
+    /**
+     * 一次批量读取[start, end]区间内的消息
+     * @param start 起始id(包含)
+     * @param end 结束id(包含)
+     * @return
+     */
+    protected List<byte[]> mget(int start, int end) {
+        byte[][] keys = new byte[end - start + 1][];
+        for (int i = start; i <= end; i++) {
+            keys[i - start] = binaryKey(i);
+        }
+        return RedisCache.mgetBytes(keys);
+    }
+
+    /**
+     * 异步删除[start, end]区间内的消息
+     * @return 删除的key个数,失败返回null
+     */
+    protected Long unlink(int start, int end) {
+        byte[][] keys = new byte[end - start + 1][];
+        for (int i = start; i <= end; i++) {
+            keys[i - start] = binaryKey(i);
+        }
+        return RedisCache.unlink(keys);
+    }
+
+    /**
+     * 通过scan查找当前队列下所有的key
+     * @return 去掉公共前缀后的key,失败返回null
+     */
+    protected Set<String> scanKeys() {
+        Set<String> fullKeys = RedisCache.scan(escapeGlob(topicPrefix), escapeGlob(cacheType));
+        if (fullKeys == null) {
+            return null;
+        }
+        Set<String> keys = new HashSet<>(fullKeys.size());
+        for (String fullKey : fullKeys) {
+            keys.add(fullKey.substring(keyPrefix.length()));
+        }
+        return keys;
+    }
+
+    private static String escapeGlob(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '*' || c == '?' || c == '[' || c == ']' || c == '\\') {
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+
+    protected Long sadd(String... members) {
+        return RedisCache.sadd(topicPrefix, cacheType, key(), members);
+    }
+
+    protected Set<String> smembers() {
+        return RedisCache.smembers(topicPrefix, cacheType, key());
+    }
+
+    /**
+     * 读取stream中[start-0, end-0]区间内的消息
+     * @param field 消息体所在的字段
+     */
+    protected Map<StreamEntryID, byte[]> xrange(long start, long end, int count, String field) {
+        return RedisCache.xrange(topicPrefix, cacheType, key(), new StreamEntryID(start, 0), new StreamEntryID(end, 0),
+            count, field);
+    }
+
+    protected Map<StreamEntryID, byte[]> xreadGroup(String group, String consumer, int count, boolean noAck,
+        String field) {
+        return RedisCache.xreadGroup(topicPrefix, cacheType, key(), group, consumer, count, noAck, field);
+    }
+
     protected boolean del() {
         return RedisCache.del(topicPrefix, cacheType, key());
     }
@@ -88,6 +216,26 @@ public class RedisQueue {
         return RedisCache.zadd(topicPrefix, cacheType, key(), score, member);
     }
 
+    protected Long zadd(double score, byte[] member) {
+        return RedisCache.zadd(fullKeyBytes, score, member);
+    }
+
+    protected Long zcard() {
+        return RedisCache.zcard(fullKey());
+    }
+
+    protected Long zrem(String member) {
+        return RedisCache.zrem(topicPrefix, cacheType, key(), member);
+    }
+
+    protected Set<String> zrangeByScore(double min, double max) {
+        return RedisCache.zrangeByScore(topicPrefix, cacheType, key(), min, max);
+    }
+
+    protected Long zremrangeByScore(double min, double max) {
+        return RedisCache.zremrangeByScore(topicPrefix, cacheType, key(), min, max);
+    }
+
     /**
      * 虽然方法多，但就是get跟set方法常用
      * @param value
@@ -125,10 +273,65 @@ public class RedisQueue {
             return transaction.set(redisQueue.topicPrefix, redisQueue.cacheType, redisQueue.key(), value, seconds);
         }
 
+        protected Response<String> set(RedisQueue redisQueue, int id, byte[] value, int seconds) {
+            return transaction.set(redisQueue.binaryKey(id), value, seconds);
+        }
+
         protected Response<Long> incr(RedisQueue redisQueue) {
             return transaction.incr(redisQueue.topicPrefix, redisQueue.cacheType, redisQueue.key());
         }
 
+        protected Response<Long> incrBy(RedisQueue redisQueue, long increment) {
+            return transaction.incrBy(redisQueue.topicPrefix, redisQueue.cacheType, redisQueue.key(), increment);
+        }
+
+        /**
+         * 执行lua脚本
+         * @param script 脚本
+         * @param keys 脚本中用到的队列,依次对应KEYS
+         * @param args ARGV
+         * @return 脚本返回值,失败返回null
+         */
+        protected Object eval(String script, List<RedisQueue> keys, List<byte[]> args) {
+            return transaction.eval(script, fullKeys(keys), args);
+        }
+
+        /**
+         * 在管道中执行lua脚本
+         * @param script 脚本
+         * @param keys 脚本中用到的队列,依次对应KEYS
+         * @param args ARGV
+         * @return 脚本返回值,sync之后可用
+         */
+        protected Response<Object> pipelineEval(String script, List<RedisQueue> keys, List<byte[]> args) {
+            return transaction.pipelineEval(script, fullKeys(keys), args);
+        }
+
+        private static List<String> fullKeys(List<RedisQueue> keys) {
+            List<String> fullKeys = new ArrayList<>(keys.size());
+            for (RedisQueue redisQueue : keys) {
+                fullKeys.add(redisQueue.fullKey());
+            }
+            return fullKeys;
+        }
+
+        protected void pipelined() {
+            transaction.pipelined();
+        }
+
+        protected void sync() {
+            transaction.sync();
+        }
+
+        /**
+         * 在事务中通知主题有新消息
+         * @param topic
+         * @return
+         */
+        protected Response<Long> notifyConsumers(String topic) {
+            return transaction.publish(MessageNotifier.CHANNEL, topic);
+        }
+
         protected void multi() {
             transaction.multi();
         }
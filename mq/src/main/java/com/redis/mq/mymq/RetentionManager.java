@@ -0,0 +1,196 @@
+package com.redis.mq.mymq;
+
+import com.redis.mq.utils.RedisCache;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * @author: xushu
+ * @date: 2018/10/26 15:40
+ * @description: 主题的消息保留管理.定期找出每个分区中所有订阅方offset的最小值,
+ * 在后台分批删除所有订阅方都已读取的消息,使内存占用跟随实际的消费积压,而不是固定的过期时间.
+ * 确认模式下已读取但还没有确认的消息不会被删除,订阅方的offset取处理中最小的id之前.
+ * 可以再限制每个分区保留的消息条数或消息保留时间,超过限制的消息即使还有订阅方没读取也会删除.
+ * 多个实例同时运行时重复删除是无害的
+ */
+public class RetentionManager implements AutoCloseable {
+
+    private static Logger log = LoggerFactory.getLogger(RetentionManager.class);
+
+    protected static final String RETENTION_MARKS_CACHETYPE = "key_retention_marks";
+    /**
+     * 检查间隔 10s
+     */
+    private static final long RETENTION_INTERVAL = 1000 * 10;
+
+    private String topic;
+    /**
+     * 每个分区的消息存储
+     */
+    private MessageStorage[] messageStorages;
+    /**
+     * 每个分区的时间标记 主题总数 -> 记录时间,用于按保留时间删除
+     */
+    private RedisQueue[] marksRedisQueues;
+    /**
+     * 每个分区最多保留的消息条数,小于等于0时不限制
+     */
+    private volatile int maxMessages;
+    /**
+     * 消息最长保留时间(毫秒),小于等于0时不限制
+     */
+    private volatile long maxAge;
+    private ScheduledExecutorService retentionExecutor;
+
+    public RetentionManager(String topic) {
+        this(topic, new TopicConfig());
+    }
+
+    /**
+     * 主题的分区数在创建时读取
+     * @param topic 主题
+     * @param config 存储方式需要与生产者一致
+     */
+    public RetentionManager(String topic, TopicConfig config) {
+        this.topic = topic;
+        int partitions = TopicPartitions.partitions(topic);
+        this.messageStorages = new MessageStorage[partitions];
+        this.marksRedisQueues = new RedisQueue[partitions];
+        for (int partition = 0; partition < partitions; partition++) {
+            this.messageStorages[partition] = MessageStorage.create(topic, partition, config);
+            this.marksRedisQueues[partition] = new RedisQueue(TopicPartitions.partitionTopic(topic, partition),
+                RETENTION_MARKS_CACHETYPE);
+        }
+    }
+
+    public RetentionManager setMaxMessages(int maxMessages) {
+        this.maxMessages = maxMessages;
+        return this;
+    }
+
+    public RetentionManager setMaxAge(long maxAge, TimeUnit unit) {
+        this.maxAge = unit.toMillis(maxAge);
+        return this;
+    }
+
+    /**
+     * 开始定期删除
+     */
+    public synchronized void start() {
+        if (retentionExecutor != null) {
+            return;
+        }
+        retentionExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "redisMq-retention-" + topic);
+            thread.setDaemon(true);
+            return thread;
+        });
+        retentionExecutor.scheduleWithFixedDelay(this::trim, 0, RETENTION_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 删除一次所有分区中可以删除的消息
+     * @return 删除的id个数
+     */
+    public int trim() {
+        int deleted = 0;
+        for (int partition = 0; partition < messageStorages.length; partition++) {
+            try {
+                deleted += trim(partition);
+            } catch (Exception e) {
+                log.error("RetentionManager trim failed, topic=" + topic + ", partition=" + partition, e);
+            }
+        }
+        return deleted;
+    }
+
+    private int trim(int partition) {
+        MessageStorage messageStorage = messageStorages[partition];
+        Map<String, Integer> offsets = messageStorage.offsets();
+        if (offsets == null) {
+            //不知道订阅方读到了哪里时不删除
+            return 0;
+        }
+        int topicSize = messageStorage.topicSize();
+        //没有订阅方时只按限制删除
+        int trimTo = offsets.isEmpty() ? 0 : Collections.min(offsets.values());
+        if (maxMessages > 0) {
+            trimTo = Math.max(trimTo, topicSize - maxMessages);
+        }
+        Set<String> expired = maxAge > 0 ? expiredMarks(partition, topicSize) : Collections.emptySet();
+        for (String expiredMark : expired) {
+            trimTo = Math.max(trimTo, Integer.parseInt(expiredMark));
+        }
+        trimTo = Math.min(trimTo, topicSize);
+        int deleted = trimTo > 0 ? messageStorage.trim(trimTo) : 0;
+        if (!expired.isEmpty()) {
+            removeMarks(partition, expired, messageStorage.trimmed());
+        }
+        if (deleted > 0) {
+            log.debug("RetentionManager trimmed {} messages, topic={}, partition={}, trimTo={}", deleted, topic,
+                partition, trimTo);
+        }
+        return deleted;
+    }
+
+    /**
+     * 每次检查时记录当前的主题总数和时间,记录时间早于保留时间的标记中最大的主题总数之前的消息都已超过保留时间
+     * @return 已超过保留时间的标记,按记录时间排序
+     */
+    private Set<String> expiredMarks(int partition, int topicSize) {
+        RedisQueue marksRedisQueue = marksRedisQueues[partition];
+        Long now = RedisCache.getCurrentTimeMillisFromRedis();
+        if (now == null) {
+            return Collections.emptySet();
+        }
+        //主题总数没有变化时保留最早的记录时间,否则空闲主题的标记永远不会过期
+        String mark = String.valueOf(topicSize);
+        if (marksRedisQueue.zscore(mark) == null) {
+            marksRedisQueue.zadd(now, mark);
+        }
+        Set<String> expired = marksRedisQueue.zrangeByScore(0, now - maxAge);
+        return expired == null ? Collections.emptySet() : expired;
+    }
+
+    /**
+     * 只删除已经删除到的标记.一次trim受单次删除上限限制或中途失败时,剩下的标记留到下次继续按保留时间删除.
+     * 主题总数只增不减,标记的记录时间随主题总数递增,删除到的标记是按记录时间排序的一段前缀
+     * @param trimmed 已删除到的消息id
+     */
+    private void removeMarks(int partition, Set<String> expired, int trimmed) {
+        String reached = null;
+        for (String expiredMark : expired) {
+            int value = Integer.parseInt(expiredMark);
+            if (value <= trimmed && (reached == null || value > Integer.parseInt(reached))) {
+                reached = expiredMark;
+            }
+        }
+        if (reached == null) {
+            return;
+        }
+        RedisQueue marksRedisQueue = marksRedisQueues[partition];
+        Double score = marksRedisQueue.zscore(reached);
+        if (score != null) {
+            marksRedisQueue.zremrangeByScore(0, score);
+        }
+    }
+
+    /**
+     * 停止定期删除
+     */
+    @Override
+    public synchronized void close() {
+        if (retentionExecutor != null) {
+            retentionExecutor.shutdownNow();
+            retentionExecutor = null;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.redis.mq.mymq;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import redis.clients.jedis.util.SafeEncoder;
+
+/**
+ * @author: xushu
+ * @date: 2018/10/29 10:30
+ * @description: 分段存储引擎.每SEGMENT_SIZE条连续的消息放在同一个redis list中,
+ * 消息id为n的消息位于 redisMq:topic:segment:((n-1)/SEGMENT_SIZE) 的第 (n-1)%SEGMENT_SIZE 个元素.
+ * redis把list中的小元素紧凑地存放在一起,省去了每条消息一个key的开销;
+ * 过期时间作用于整段消息,每次向该段追加时刷新;保留管理按整段删除.
+ * 消息id仍由主题总数分配,发布和读取都在lua脚本中进行,保证段内下标与消息id一致
+ */
+class SegmentStorage extends AbstractMessageStorage {
+
+    protected static final String TOPIC_SEGMENT_CACHETYPE = "segment";
+    /**
+     * 每段的消息条数
+     */
+    private static final int SEGMENT_SIZE = 1000;
+    private static final byte[] SEGMENT_SIZE_BYTES = SafeEncoder.encode(String.valueOf(SEGMENT_SIZE));
+    /**
+     * 段内已过期或缺失消息的占位元素
+     */
+    private static final String PLACEHOLDER = "''";
+    /**
+     * KEYS[1] 主题总数key, ARGV[1] 通知频道, ARGV[2] 主题, ARGV[3] 段key前缀, ARGV[4] 每段条数.
+     * 段在写满之前过期时,先用占位元素补齐到消息id对应的下标
+     */
+    private static final String STORE_FUNCTION =
+        "local function store(messages, seconds) "
+            + "local n = #messages "
+            + "local segmentSize = tonumber(ARGV[4]) "
+            + "local first = redis.call('INCRBY', KEYS[1], n) - n + 1 "
+            + "local i = 1 "
+            + "while i <= n do "
+            + "local id = first + i - 1 "
+            + "local key = ARGV[3] .. math.floor((id - 1) / segmentSize) "
+            + "local index = (id - 1) % segmentSize "
+            + "local length = redis.call('LLEN', key) "
+            + "if length < index then "
+            + "local padding = {} "
+            + "for j = 1, index - length do padding[j] = " + PLACEHOLDER + " end "
+            + "redis.call('RPUSH', key, unpack(padding)) "
+            + "end "
+            + "local count = math.min(n - i + 1, segmentSize - index) "
+            + "redis.call('RPUSH', key, unpack(messages, i, i + count - 1)) "
+            + "if seconds > 0 then redis.call('EXPIRE', key, seconds) end "
+            + "i = i + count "
+            + "end "
+            + "return first "
+            + "end ";
+    private static final String PUBLISH_SCRIPT = publishScript(STORE_FUNCTION, 4);
+    private static final String PROMOTE_SCRIPT = promoteScript(STORE_FUNCTION, 4);
+    /**
+     * ARGV[1] 段key前缀, ARGV[2] 每段条数.slice(from, to, result)按段LRANGE读取[from, to]区间内的消息,
+     * 把 id, 消息 依次追加到result中,跳过已过期的消息
+     */
+    private static final String SLICE_FUNCTION =
+        "local segmentSize = tonumber(ARGV[2]) "
+            + "local function slice(from, to, result) "
+            + "while from <= to do "
+            + "local segment = math.floor((from - 1) / segmentSize) "
+            + "local base = segment * segmentSize "
+            + "local last = math.min(to, base + segmentSize) "
+            + "local values = redis.call('LRANGE', ARGV[1] .. segment, from - base - 1, last - base - 1) "
+            + "for i = 1, #values do "
+            + "if values[i] ~= " + PLACEHOLDER + " then "
+            + "result[#result + 1] = from + i - 1 result[#result + 1] = values[i] "
+            + "end "
+            + "end "
+            + "from = last + 1 "
+            + "end "
+            + "end ";
+    /**
+     * KEYS同READ_RESULT, ARGV[1] 段key前缀, ARGV[2] 每段条数, ARGV[3] 最多读取条数.
+     * 读取offset之后的消息并推进offset,返回 {剩余未读条数, id, 消息, id, 消息 ...}
+     */
+    private static final String READ_SCRIPT = OFFSET_SCRIPT + SLICE_FUNCTION
+        + "local start = offset "
+        + "local max = tonumber(ARGV[3]) "
+        + "local result = {0} "
+        + "local scanned = 0 "
+        + "while #result == 1 and offset < size and scanned < " + READ_SCAN_LIMIT + " do "
+        + "local to = math.min(size, offset + max) "
+        + "slice(offset + 1, to, result) "
+        + "offset = to "
+        + "scanned = scanned + 1 "
+        + "end "
+        + "if offset ~= start then redis.call('SET', KEYS[2], offset) end "
+        + "result[1] = size - offset "
+        + READ_RESULT;
+    /**
+     * KEYS[1] 主题总数key, ARGV[1] 段key前缀, ARGV[2] 每段条数, ARGV[3] offset, ARGV[4] 最多读取条数.
+     * 返回 {读取到的最大id, id, 消息, id, 消息 ...}
+     */
+    private static final String FETCH_SCRIPT = SLICE_FUNCTION
+        + "local size = tonumber(redis.call('GET', KEYS[1]) or 0) "
+        + "local offset = tonumber(ARGV[3]) "
+        + "local to = math.min(size, offset + tonumber(ARGV[4])) "
+        + "local result = {to} "
+        + "slice(offset + 1, to, result) "
+        + "return result";
+    /**
+     * KEYS同OFFSET_SCRIPT, ARGV[1] 段key前缀, ARGV[2] 每段条数.返回下一条未读消息,不推进offset
+     */
+    private static final String PEEK_SCRIPT = OFFSET_SCRIPT
+        + "local id = offset + 1 "
+        + "if id > size then return false end "
+        + "local segmentSize = tonumber(ARGV[2]) "
+        + "local value = redis.call('LINDEX', ARGV[1] .. math.floor((id - 1) / segmentSize), (id - 1) % segmentSize) "
+        + "if value == " + PLACEHOLDER + " then return false end "
+        + "return value";
+
+    /**
+     * 主题消息段
+     */
+    private final RedisQueue segmentRedisQueue;
+
+    SegmentStorage(String topic, int partition) {
+        super(topic, partition);
+        this.segmentRedisQueue = new RedisQueue(partitionTopic, TOPIC_SEGMENT_CACHETYPE);
+    }
+
+    @Override
+    protected String publishScript() {
+        return PUBLISH_SCRIPT;
+    }
+
+    @Override
+    protected List<RedisQueue> publishKeys() {
+        return Collections.singletonList(countRedisQueue);
+    }
+
+    @Override
+    protected String promoteScript() {
+        return PROMOTE_SCRIPT;
+    }
+
+    @Override
+    protected List<byte[]> storeArgs() {
+        return Arrays.asList(segmentRedisQueue.keyPrefixBytes(), SEGMENT_SIZE_BYTES);
+    }
+
+    @Override
+    public Map<Integer, byte[]> read(String subscriber, int maxMessages) {
+        return read(subscriber, maxMessages, 0);
+    }
+
+    @Override
+    public Map<Integer, byte[]> read(String subscriber, int maxMessages, long deadline) {
+        return readByScript(READ_SCRIPT, subscriber, maxMessages, deadline, segmentRedisQueue.keyPrefixBytes(),
+            SEGMENT_SIZE_BYTES);
+    }
+
+    /**
+     * 按段LRANGE读取offset之后的消息,一次往返,已过期的消息对应null
+     */
+    @Override
+    public Map<Integer, byte[]> fetch(int offset, int maxMessages) {
+        Map<Integer, byte[]> result = new LinkedHashMap<>();
+        if (maxMessages <= 0) {
+            return result;
+        }
+        Object reply = RedisQueue.execOnSameRedisConn(redisTransaction -> {
+            return redisTransaction.eval(FETCH_SCRIPT, publishKeys(), Arrays.asList(segmentRedisQueue.keyPrefixBytes(),
+                SEGMENT_SIZE_BYTES, SafeEncoder.encode(String.valueOf(offset)),
+                SafeEncoder.encode(String.valueOf(maxMessages))));
+        });
+        if (!(reply instanceof List)) {
+            return result;
+        }
+        List<?> values = (List<?>) reply;
+        int to = ((Long) values.get(0)).intValue();
+        for (int id = offset + 1; id <= to; id++) {
+            result.put(id, null);
+        }
+        putMessages(result, values, 1);
+        return result;
+    }
+
+    @Override
+    public byte[] peek(String subscriber) {
+        return (byte[]) evalOffsetScript(PEEK_SCRIPT, subscriber, segmentRedisQueue.keyPrefixBytes(),
+            SEGMENT_SIZE_BYTES);
+    }
+
+    @Override
+    public int unreadMessages(String subscriber) {
+        return unreadMessagesByScript(subscriber);
+    }
+
+    /**
+     * 只删除最后一条消息落在[start, end]区间内的段,没有删完的段在下次trim时删除
+     */
+    @Override
+    protected boolean delete(int start, int end) {
+        int firstSegment = (start - 1) / SEGMENT_SIZE;
+        int lastSegment = end / SEGMENT_SIZE - 1;
+        if (lastSegment < firstSegment) {
+            return true;
+        }
+        return segmentRedisQueue.unlink(firstSegment, lastSegment) != null;
+    }
+}
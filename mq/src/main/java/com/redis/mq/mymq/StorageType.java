@@ -0,0 +1,21 @@
+package com.redis.mq.mymq;
+
+/**
+ * @author: xushu
+ * @date: 2018/10/18 11:20
+ * @description: 主题消息的存储方式,同一主题的生产者和消费者需要使用相同的存储方式
+ */
+public enum StorageType {
+    /**
+     * 每条消息一个string key,外加主题总数和订阅方offset
+     */
+    KEY_VALUE,
+    /**
+     * 每个主题一个redis stream,订阅方对应stream的消费组
+     */
+    STREAM,
+    /**
+     * 每1000条消息一个redis list,小消息占用的内存远小于每条消息一个key
+     */
+    SEGMENT
+}
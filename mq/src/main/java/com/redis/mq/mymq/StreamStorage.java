@@ -0,0 +1,377 @@
+package com.redis.mq.mymq;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import redis.clients.jedis.StreamEntryID;
+import redis.clients.jedis.util.SafeEncoder;
+
+/**
+ * @author: xushu
+ * @date: 2018/10/18 11:20
+ * @description: 基于redis stream的存储引擎.每个主题一个stream redisMq:topic:stream:all,
+ * 消息id仍由主题总数分配,作为stream的entry id(id-0);每个订阅方对应一个消费组,
+ * 同一订阅方的多个实例通过消费组分摊消息,不再竞争同一个offset.
+ * 订阅方的读取位置只有消费组最后投递的id一个:read通过XREADGROUP推进,committed/commit通过XINFO GROUPS和XGROUP SETID读写,
+ * fetch按id范围读取stream,所以同一订阅方的Consumer与ParallelConsumer等使用同一个读取位置.
+ * 确认模式下处理中的消息记录在消费组的pending列表中,ack即XACK,超过确认期限的消息通过XCLAIM重新投递
+ */
+class StreamStorage extends AbstractMessageStorage {
+
+    protected static final String TOPIC_STREAM_CACHETYPE = "stream";
+    /**
+     * stream entry中存放消息的字段
+     */
+    private static final String MESSAGE_FIELD = "m";
+    /**
+     * 当前实例在消费组中的名字
+     */
+    private static final String CONSUMER_NAME = ManagementFactory.getRuntimeMXBean().getName();
+    /**
+     * 从pending列表开头扫描
+     */
+    private static final byte[] SCAN_FROM_START = SafeEncoder.encode("-");
+    /**
+     * KEYS[1] 主题总数key, KEYS[2] stream key, ARGV[1] 通知频道, ARGV[2] 主题.
+     * stream不支持单条消息过期,过期时间作用于整个stream,每次写入时刷新
+     */
+    private static final String STORE_FUNCTION =
+        "local function store(messages, seconds) "
+            + "local n = #messages "
+            + "local first = redis.call('INCRBY', KEYS[1], n) - n + 1 "
+            + "for i = 1, n do "
+            + "redis.call('XADD', KEYS[2], (first + i - 1) .. '-0', '" + MESSAGE_FIELD + "', messages[i]) "
+            + "end "
+            + "if seconds > 0 then redis.call('EXPIRE', KEYS[2], seconds) end "
+            + "return first "
+            + "end ";
+    private static final String PUBLISH_SCRIPT = publishScript(STORE_FUNCTION, 2);
+    private static final String PROMOTE_SCRIPT = promoteScript(STORE_FUNCTION, 2);
+    /**
+     * KEYS[1] 主题总数key, KEYS[2] stream key, ARGV[1] 删除到的id.
+     * stream按条数裁剪,与发布脚本互斥执行,保留的条数由主题总数算出,不会误删新发布的消息
+     */
+    private static final String TRIM_SCRIPT =
+        "local keep = tonumber(redis.call('GET', KEYS[1]) or 0) - tonumber(ARGV[1]) "
+            + "if keep < 0 then keep = 0 end "
+            + "return redis.call('XTRIM', KEYS[2], 'MAXLEN', keep)";
+    /**
+     * KEYS[1] stream key, ARGV[1] 消费组, ARGV[2...] entry id
+     */
+    private static final String ACK_SCRIPT = "return redis.call('XACK', KEYS[1], ARGV[1], unpack(ARGV, 2))";
+    /**
+     * 每次重新投递脚本最多扫描的pending列表页数,每页最多取出条数个entry
+     */
+    private static final int REDELIVER_SCAN_LIMIT = 10;
+    /**
+     * KEYS[1] stream key, ARGV[1] 消费组, ARGV[2] 当前实例, ARGV[3] 确认超时(毫秒), ARGV[4] 最多取出条数, ARGV[5] 开始扫描的id.
+     * 从开始扫描的id起分页遍历pending列表,取出空闲超过确认超时的entry,XCLAIM给当前实例并重置空闲时间即顺延期限.
+     * 前面的entry还没有超时不会挡住后面已超时的entry;扫描到末尾后下次从头开始.
+     * 多个实例同时取出时XCLAIM按空闲时间过滤,每条消息只会被其中一个取到.返回 {下次开始扫描的id, entry id ...}
+     */
+    private static final String REDELIVER_SCRIPT =
+        "if redis.call('EXISTS', KEYS[1]) == 0 then return {'-'} end "
+            + "local max = tonumber(ARGV[4]) "
+            + "local idle = tonumber(ARGV[3]) "
+            + "local start = ARGV[5] "
+            + "local ids = {} "
+            + "for page = 1, " + REDELIVER_SCAN_LIMIT + " do "
+            + "local pending = redis.pcall('XPENDING', KEYS[1], ARGV[1], start, '+', max) "
+            + "if pending.err then return {'-'} end "
+            + "for _, entry in ipairs(pending) do "
+            + "start = (tonumber(string.match(entry[1], '^%d+')) + 1) .. '-0' "
+            + "if entry[3] >= idle then "
+            + "ids[#ids + 1] = entry[1] "
+            + "if #ids >= max then break end "
+            + "end "
+            + "end "
+            + "if #ids >= max then break end "
+            + "if #pending < max then start = '-' break end "
+            + "end "
+            + "local result = {start} "
+            + "if #ids > 0 then "
+            + "for _, id in ipairs(redis.call('XCLAIM', KEYS[1], ARGV[1], ARGV[2], ARGV[3], unpack(ids), 'JUSTID')) do "
+            + "result[#result + 1] = id "
+            + "end "
+            + "end "
+            + "return result";
+    /**
+     * KEYS[1] 主题总数key, KEYS[2] stream key, ARGV[1] 订阅方(消费组), ARGV[2] 消费组不存在时的初始位置(可选).
+     * 从XINFO GROUPS中取消费组最后投递的id作为订阅方的读取位置.消费组不存在时在初始位置创建,
+     * 没有初始位置时从最新的消息开始;stream不存在时一并创建,之后发布的id总是大于初始位置
+     */
+    private static final String GROUP_OFFSET_SCRIPT =
+        "local size = tonumber(redis.call('GET', KEYS[1]) or 0) "
+            + "local offset = nil "
+            + "if redis.call('EXISTS', KEYS[2]) == 1 then "
+            + "for _, group in ipairs(redis.call('XINFO', 'GROUPS', KEYS[2])) do "
+            + "local info = {} "
+            + "for i = 1, #group, 2 do info[group[i]] = group[i + 1] end "
+            + "if info['name'] == ARGV[1] then offset = tonumber(string.match(info['last-delivered-id'], '^%d+')) end "
+            + "end "
+            + "end "
+            + "if not offset then "
+            + "offset = ARGV[2] and tonumber(ARGV[2]) or size "
+            + "redis.call('XGROUP', 'CREATE', KEYS[2], ARGV[1], offset .. '-0', 'MKSTREAM') "
+            + "end ";
+    /**
+     * KEYS[1] stream key.返回 {消费组, 位置, 消费组, 位置 ...},
+     * 位置取消费组最后投递的id和pending列表中最小id - 1中较小的一个,裁剪stream时不会删除还没有投递或还没有确认的entry
+     */
+    private static final String OFFSETS_SCRIPT =
+        "local result = {} "
+            + "if redis.call('EXISTS', KEYS[1]) == 0 then return result end "
+            + "for _, group in ipairs(redis.call('XINFO', 'GROUPS', KEYS[1])) do "
+            + "local info = {} "
+            + "for i = 1, #group, 2 do info[group[i]] = group[i + 1] end "
+            + "local offset = tonumber(string.match(info['last-delivered-id'], '^%d+')) "
+            + "if info['pending'] > 0 then "
+            + "local summary = redis.call('XPENDING', KEYS[1], info['name']) "
+            + "offset = math.min(offset, tonumber(string.match(summary[2], '^%d+')) - 1) "
+            + "end "
+            + "result[#result + 1] = info['name'] "
+            + "result[#result + 1] = offset "
+            + "end "
+            + "return result";
+    /**
+     * KEYS同GROUP_OFFSET_SCRIPT.返回订阅方的读取位置
+     */
+    private static final String COMMITTED_SCRIPT = GROUP_OFFSET_SCRIPT
+        + "return offset";
+    /**
+     * KEYS同GROUP_OFFSET_SCRIPT, ARGV[2] 提交的位置.把消费组最后投递的id设置为提交的位置
+     */
+    private static final String COMMIT_SCRIPT = GROUP_OFFSET_SCRIPT
+        + "redis.call('XGROUP', 'SETID', KEYS[2], ARGV[1], ARGV[2] .. '-0') "
+        + "return 1";
+    /**
+     * KEYS同GROUP_OFFSET_SCRIPT.返回未读消息条数
+     */
+    private static final String UNREAD_SCRIPT = GROUP_OFFSET_SCRIPT
+        + "return size - offset";
+    /**
+     * KEYS同GROUP_OFFSET_SCRIPT.返回消费组下一条未投递的消息,已被裁剪的消息跳过
+     */
+    private static final String PEEK_SCRIPT = GROUP_OFFSET_SCRIPT
+        + "if offset >= size then return false end "
+        + "local entries = redis.call('XRANGE', KEYS[2], (offset + 1) .. '-0', '+', 'COUNT', 1) "
+        + "if #entries == 0 then return false end "
+        + "return entries[1][2][2]";
+
+    /**
+     * 主题消息stream
+     */
+    private final RedisQueue streamRedisQueue;
+    /**
+     * 已经创建过消费组的订阅方
+     */
+    private final Set<String> groups = ConcurrentHashMap.newKeySet();
+    /**
+     * 订阅方下次重新投递时开始扫描pending列表的id
+     */
+    private final Map<String, byte[]> redeliverCursors = new ConcurrentHashMap<>();
+
+    StreamStorage(String topic, int partition) {
+        super(topic, partition);
+        this.streamRedisQueue = new RedisQueue(partitionTopic, TOPIC_STREAM_CACHETYPE);
+    }
+
+    @Override
+    protected String publishScript() {
+        return PUBLISH_SCRIPT;
+    }
+
+    @Override
+    protected List<RedisQueue> publishKeys() {
+        return Arrays.asList(countRedisQueue, streamRedisQueue);
+    }
+
+    @Override
+    protected String promoteScript() {
+        return PROMOTE_SCRIPT;
+    }
+
+    @Override
+    protected List<byte[]> storeArgs() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * 以NOACK方式读取,与KEY_VALUE存储读取即推进offset的语义一致
+     */
+    @Override
+    public Map<Integer, byte[]> read(String subscriber, int maxMessages) {
+        return readGroup(subscriber, maxMessages, true);
+    }
+
+    /**
+     * 不带NOACK读取,读取到的消息进入消费组的pending列表.
+     * 确认期限由pending列表中的空闲时间表示,redeliver时按deadline - now计算确认超时,这里不再单独记录
+     */
+    @Override
+    public Map<Integer, byte[]> read(String subscriber, int maxMessages, long deadline) {
+        return readGroup(subscriber, maxMessages, false);
+    }
+
+    private Map<Integer, byte[]> readGroup(String subscriber, int maxMessages, boolean noAck) {
+        Map<Integer, byte[]> result = new LinkedHashMap<>();
+        if (!groups.contains(subscriber)) {
+            if (evalGroupScript(COMMITTED_SCRIPT, subscriber) == null) {
+                return result;
+            }
+            groups.add(subscriber);
+        }
+        Map<StreamEntryID, byte[]> entries = streamRedisQueue.xreadGroup(subscriber, CONSUMER_NAME, maxMessages, noAck,
+            MESSAGE_FIELD);
+        if (entries == null) {
+            //stream过期后消费组也随之删除,下次读取时重新创建
+            groups.remove(subscriber);
+            return result;
+        }
+        for (Map.Entry<StreamEntryID, byte[]> entry : entries.entrySet()) {
+            result.put((int) entry.getKey().getTime(), entry.getValue());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<Integer, byte[]> fetch(int offset, int maxMessages) {
+        Map<Integer, byte[]> result = new LinkedHashMap<>();
+        int size = Math.min(getTopicSize() - offset, maxMessages);
+        if (size <= 0) {
+            return result;
+        }
+        Map<StreamEntryID, byte[]> entries = streamRedisQueue.xrange(offset + 1, offset + size, size, MESSAGE_FIELD);
+        if (entries == null) {
+            return result;
+        }
+        for (int id = offset + 1; id <= offset + size; id++) {
+            result.put(id, null);
+        }
+        for (Map.Entry<StreamEntryID, byte[]> entry : entries.entrySet()) {
+            result.put((int) entry.getKey().getTime(), entry.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * stream的订阅方就是它的消费组,读取位置从XINFO GROUPS中取,不使用订阅方登记set
+     */
+    @Override
+    public Map<String, Integer> offsets() {
+        Object reply = RedisQueue.execOnSameRedisConn(redisTransaction -> {
+            return redisTransaction.eval(OFFSETS_SCRIPT, Collections.singletonList(streamRedisQueue),
+                Collections.emptyList());
+        });
+        if (!(reply instanceof List)) {
+            return null;
+        }
+        List<?> values = (List<?>) reply;
+        Map<String, Integer> offsets = new HashMap<>(values.size() / 2);
+        for (int i = 0; i + 1 < values.size(); i += 2) {
+            offsets.put(SafeEncoder.encode((byte[]) values.get(i)), ((Long) values.get(i + 1)).intValue());
+        }
+        return offsets;
+    }
+
+    @Override
+    protected boolean delete(int start, int end) {
+        Object trimmed = RedisQueue.execOnSameRedisConn(redisTransaction -> {
+            return redisTransaction.eval(TRIM_SCRIPT, publishKeys(),
+                Collections.singletonList(SafeEncoder.encode(String.valueOf(end))));
+        });
+        return trimmed != null;
+    }
+
+    /**
+     * 消费组不存在时从最新的消息开始,与KEY_VALUE存储第一次读取时初始化offset一致
+     */
+    @Override
+    public int committed(String subscriber) {
+        Object offset = evalGroupScript(COMMITTED_SCRIPT, subscriber);
+        return offset == null ? getTopicSize() : ((Long) offset).intValue();
+    }
+
+    @Override
+    public int committed(String subscriber, int initial) {
+        Object offset = evalGroupScript(COMMITTED_SCRIPT, subscriber, SafeEncoder.encode(String.valueOf(initial)));
+        return offset == null ? initial : ((Long) offset).intValue();
+    }
+
+    @Override
+    public boolean commit(String subscriber, int offset) {
+        return evalGroupScript(COMMIT_SCRIPT, subscriber, SafeEncoder.encode(String.valueOf(offset))) != null;
+    }
+
+    @Override
+    public byte[] peek(String subscriber) {
+        return (byte[]) evalGroupScript(PEEK_SCRIPT, subscriber);
+    }
+
+    @Override
+    public boolean ack(String subscriber, List<Integer> ids) {
+        if (ids.isEmpty()) {
+            return true;
+        }
+        List<byte[]> args = new ArrayList<>(ids.size() + 1);
+        args.add(SafeEncoder.encode(subscriber));
+        for (Integer id : ids) {
+            args.add(SafeEncoder.encode(id + "-0"));
+        }
+        Object acked = RedisQueue.execOnSameRedisConn(redisTransaction -> {
+            return redisTransaction.eval(ACK_SCRIPT, Collections.singletonList(streamRedisQueue), args);
+        });
+        return acked != null;
+    }
+
+    @Override
+    public Map<Integer, byte[]> redeliver(String subscriber, long now, long deadline, int maxMessages) {
+        byte[] cursor = redeliverCursors.getOrDefault(subscriber, SCAN_FROM_START);
+        Object claimed = RedisQueue.execOnSameRedisConn(redisTransaction -> {
+            return redisTransaction.eval(REDELIVER_SCRIPT, Collections.singletonList(streamRedisQueue),
+                Arrays.asList(SafeEncoder.encode(subscriber), SafeEncoder.encode(CONSUMER_NAME),
+                    SafeEncoder.encode(String.valueOf(Math.max(0, deadline - now))),
+                    SafeEncoder.encode(String.valueOf(maxMessages)), cursor));
+        });
+        if (!(claimed instanceof List) || ((List<?>) claimed).isEmpty()) {
+            return new TreeMap<>();
+        }
+        List<?> values = (List<?>) claimed;
+        redeliverCursors.put(subscriber, (byte[]) values.get(0));
+        List<Integer> ids = new ArrayList<>();
+        for (Object id : values.subList(1, values.size())) {
+            ids.add((int) new StreamEntryID(SafeEncoder.encode((byte[]) id)).getTime());
+        }
+        if (ids.isEmpty()) {
+            return new TreeMap<>();
+        }
+        return redelivered(subscriber, ids);
+    }
+
+    @Override
+    public int unreadMessages(String subscriber) {
+        Object unread = evalGroupScript(UNREAD_SCRIPT, subscriber);
+        return unread == null ? 0 : Math.max(0, ((Long) unread).intValue());
+    }
+
+    /**
+     * 执行以GROUP_OFFSET_SCRIPT开头的脚本
+     */
+    private Object evalGroupScript(String script, String subscriber, byte[]... args) {
+        List<byte[]> argv = new ArrayList<>(args.length + 1);
+        argv.add(SafeEncoder.encode(subscriber));
+        argv.addAll(Arrays.asList(args));
+        return RedisQueue.execOnSameRedisConn(redisTransaction -> {
+            return redisTransaction.eval(script, publishKeys(), argv);
+        });
+    }
+}
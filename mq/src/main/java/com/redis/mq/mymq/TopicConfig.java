@@ -0,0 +1,91 @@
+package com.redis.mq.mymq;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author: xushu
+ * @date: 2018/10/22 10:15
+ * @description: 主题的生产和消费配置,同一主题的生产者和消费者需要使用相同的存储方式
+ */
+public class TopicConfig {
+    /** 存储方式 */
+    private StorageType storageType = StorageType.KEY_VALUE;
+    /** 发布方式,只对KEY_VALUE存储生效,STREAM存储总是通过脚本发布 */
+    private PublishMode publishMode = PublishMode.TRANSACTION;
+    /** 读取方式,只对KEY_VALUE存储生效 */
+    private ConsumeMode consumeMode = ConsumeMode.SCRIPT;
+    /**
+     * 消息编码,解码时兼容其他编码写入的消息.默认fastjson文本,旧版本消费者也能读取;
+     * 旧版本消费者无法解析BinaryMessageCodec写入的消息,需要所有消费者升级之后生产者再通过setCodec切换
+     */
+    private MessageCodec codec = new JsonMessageCodec();
+    /** 编码后超过该字节数的消息压缩后再写入,小于等于0时不压缩.消费者总能读取压缩的消息 */
+    private int compressThreshold = 0;
+    /** 消费者处理失败的策略,为null时只记录日志并丢弃消息 */
+    private FailurePolicy failurePolicy;
+    /** 大于0时消费者以确认模式读取,读取到的消息超过该时间(毫秒)没有确认会重新投递 */
+    private long visibilityTimeout = 0;
+
+    public StorageType getStorageType() {
+        return storageType;
+    }
+
+    public TopicConfig setStorageType(StorageType storageType) {
+        this.storageType = storageType;
+        return this;
+    }
+
+    public PublishMode getPublishMode() {
+        return publishMode;
+    }
+
+    public TopicConfig setPublishMode(PublishMode publishMode) {
+        this.publishMode = publishMode;
+        return this;
+    }
+
+    public ConsumeMode getConsumeMode() {
+        return consumeMode;
+    }
+
+    public TopicConfig setConsumeMode(ConsumeMode consumeMode) {
+        this.consumeMode = consumeMode;
+        return this;
+    }
+
+    public MessageCodec getCodec() {
+        return codec;
+    }
+
+    public TopicConfig setCodec(MessageCodec codec) {
+        this.codec = codec;
+        return this;
+    }
+
+    public int getCompressThreshold() {
+        return compressThreshold;
+    }
+
+    public TopicConfig setCompressThreshold(int compressThreshold) {
+        this.compressThreshold = compressThreshold;
+        return this;
+    }
+
+    public FailurePolicy getFailurePolicy() {
+        return failurePolicy;
+    }
+
+    public TopicConfig setFailurePolicy(FailurePolicy failurePolicy) {
+        this.failurePolicy = failurePolicy;
+        return this;
+    }
+
+    public long getVisibilityTimeout() {
+        return visibilityTimeout;
+    }
+
+    public TopicConfig setVisibilityTimeout(long visibilityTimeout, TimeUnit unit) {
+        this.visibilityTimeout = unit.toMillis(visibilityTimeout);
+        return this;
+    }
+}
@@ -0,0 +1,87 @@
+package com.redis.mq.mymq;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.commons.lang.StringUtils;
+import redis.clients.jedis.util.SafeEncoder;
+
+/**
+ * @author: xushu
+ * @date: 2018/10/22 16:05
+ * @description: 主题分区.每个分区有独立的主题总数和消息key,分区0沿用主题本身的key,
+ * 未声明分区的主题就是只有一个分区的主题
+ */
+public class TopicPartitions {
+
+    protected static final String TOPIC_PARTITIONS_CACHETYPE = "key_partitions";
+    private static final String PARTITION_SEPARATOR = "#";
+    /**
+     * 未声明分区的主题只有一个分区
+     */
+    private static final int DEFAULT_PARTITIONS = 1;
+    /**
+     * KEYS[1] 分区数key, ARGV[1] 声明的分区数, ARGV[2] 未声明时的分区数.
+     * 比较和写入在同一个脚本中完成,并发声明时分区数也不会减少.返回声明之后的分区数
+     */
+    private static final String DECLARE_SCRIPT =
+        "local current = tonumber(redis.call('GET', KEYS[1]) or ARGV[2]) "
+            + "if tonumber(ARGV[1]) < current then return current end "
+            + "redis.call('SET', KEYS[1], ARGV[1]) "
+            + "return tonumber(ARGV[1])";
+
+    /**
+     * 声明主题的分区数.分区数只能增加,减少分区会让已有分区中的消息无法被读取
+     * @param topic 主题
+     * @param partitions 分区数
+     * @return 是否声明成功
+     */
+    public static boolean declare(String topic, int partitions) {
+        RedisQueue partitionsRedisQueue = new RedisQueue(topic, TOPIC_PARTITIONS_CACHETYPE);
+        Object declared = RedisQueue.execOnSameRedisConn(redisTransaction -> {
+            return redisTransaction.eval(DECLARE_SCRIPT, Collections.singletonList(partitionsRedisQueue),
+                Arrays.asList(SafeEncoder.encode(String.valueOf(partitions)),
+                    SafeEncoder.encode(String.valueOf(DEFAULT_PARTITIONS))));
+        });
+        if (declared == null) {
+            return false;
+        }
+        if (((Long) declared).intValue() > partitions) {
+            throw new IllegalArgumentException("partitions of topic " + topic + " can not be decreased");
+        }
+        return true;
+    }
+
+    /**
+     * 主题的分区数
+     * @param topic 主题
+     * @return
+     */
+    public static int partitions(String topic) {
+        String partitions = new RedisQueue(topic, TOPIC_PARTITIONS_CACHETYPE).get();
+        if (StringUtils.isEmpty(partitions)) {
+            return DEFAULT_PARTITIONS;
+        }
+        return Integer.parseInt(partitions);
+    }
+
+    /**
+     * 分区在redis中使用的主题名
+     * @param topic 主题
+     * @param partition 分区
+     * @return
+     */
+    public static String partitionTopic(String topic, int partition) {
+        return partition == 0 ? topic : topic + PARTITION_SEPARATOR + partition;
+    }
+
+    /**
+     * 根据路由key计算分区
+     * @param key 路由key
+     * @param partitions 分区数
+     * @return
+     */
+    public static int partition(String key, int partitions) {
+        return (key.hashCode() & Integer.MAX_VALUE) % partitions;
+    }
+}
@@ -5,11 +5,17 @@ import com.redis.mq.mymq.Consumer;
 import com.redis.mq.mymq.Producer;
 import com.redis.mq.mymq.RedisMessageModel;
 import com.redis.mq.utils.RedisCache;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.annotation.SchedulingConfigurer;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.scheduling.config.ScheduledTaskRegistrar;
 
 
 
@@ -21,7 +27,7 @@ import org.springframework.scheduling.annotation.Scheduled;
  */
 @Configuration
 @EnableScheduling
-public class SchedulingConfig {
+public class SchedulingConfig implements SchedulingConfigurer {
 
     private static Logger LOGGER = LoggerFactory.getLogger(SchedulingConfig.class);
 
@@ -30,21 +36,61 @@ public class SchedulingConfig {
      * 消费消息间隔 5s
      */
     private static final long PULL_FIXED_DELAY = 1000 * 5;
+    /**
+     * 长轮询间隔,消费任务本身会阻塞等待新消息
+     */
+    private static final long LONG_POLL_FIXED_DELAY = 10;
+    /**
+     * 每次最多消费的消息条数
+     */
+    private static final int CONSUME_BATCH_SIZE = 100;
+    /**
+     * 消费任务阻塞在长轮询上,需要单独的调度线程,避免阻塞生产任务
+     */
+    private static final int SCHEDULER_POOL_SIZE = 2;
+    private static final String TOPIC = "xushu";
 
-    @Scheduled(fixedDelay = PULL_FIXED_DELAY)
+    /**
+     * 生产者和消费者可以被多个线程共享,第一次调度时创建后一直复用
+     */
+    private volatile Producer producer;
+    private volatile Consumer consumer;
+
+    @Override
+    public void configureTasks(ScheduledTaskRegistrar taskRegistrar) {
+        taskRegistrar.setScheduler(taskScheduler());
+    }
+
+    /**
+     * 调度线程池由spring管理,容器关闭时随之关闭
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ThreadPoolTaskScheduler taskScheduler() {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(SCHEDULER_POOL_SIZE);
+        scheduler.setThreadNamePrefix("redisMq-scheduler-");
+        return scheduler;
+    }
+
+    @Scheduled(fixedDelay = LONG_POLL_FIXED_DELAY)
     public void consumer() {
         LOGGER.debug("consumer job is start");
-        Consumer consumer = new Consumer("xushu", RedisCache.getDefaultKeyPrefix());
-        consumer.consume(message -> {
+        if (consumer == null) {
+            consumer = new Consumer(TOPIC, RedisCache.getDefaultKeyPrefix());
+        }
+        List<RedisMessageModel> messages = consumer.poll(CONSUME_BATCH_SIZE, PULL_FIXED_DELAY, TimeUnit.MILLISECONDS);
+        for (RedisMessageModel message : messages) {
             System.out.println("我是消费者：" + message.getContent());
-        });
+        }
         LOGGER.debug("consumer job is end");
     }
 
     @Scheduled(fixedDelay = PULL_FIXED_DELAY)
     public void produce() {
         LOGGER.debug("producer job is start");
-        Producer producer = new Producer("xushu");
+        if (producer == null) {
+            producer = new Producer(TOPIC);
+        }
         RedisMessageModel messageModel = new RedisMessageModel();
         messageModel.setContent("gggggggggg");
         producer.publish(messageModel);
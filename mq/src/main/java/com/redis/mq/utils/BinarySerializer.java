@@ -0,0 +1,361 @@
+package com.redis.mq.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * @author: xushu
+ * @date: 2018/10/24 16:20
+ * @description: 不需要预先定义结构的二进制序列化.每个值以1字节类型标记开头:
+ * 字符串、数字、布尔、时间、字节数组以及ArrayList/HashMap/LinkedHashMap/HashSet/LinkedHashSet直接写入,
+ * 其他类型整体使用jdk序列化后嵌入.类型标记都小于0xAC,旧的jdk序列化数据(0xACED开头)仍然可以读取.
+ * 序列化时复用线程内的缓冲区,只在最后复制一次结果
+ */
+public class BinarySerializer implements Serializer {
+
+    private static final byte NULL = 0x00;
+    private static final byte STRING = 0x01;
+    private static final byte INTEGER = 0x02;
+    private static final byte LONG = 0x03;
+    private static final byte DOUBLE = 0x04;
+    private static final byte TRUE = 0x05;
+    private static final byte FALSE = 0x06;
+    private static final byte BYTES = 0x07;
+    private static final byte DATE = 0x08;
+    private static final byte ARRAY_LIST = 0x09;
+    private static final byte HASH_MAP = 0x0A;
+    private static final byte LINKED_HASH_MAP = 0x0B;
+    private static final byte HASH_SET = 0x0C;
+    private static final byte LINKED_HASH_SET = 0x0D;
+    private static final byte JAVA = 0x0E;
+
+    /**
+     * 超过该大小的缓冲区用完后不再保留,避免偶尔的大对象长期占用内存
+     */
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+
+    private static final ThreadLocal<Output> OUTPUT = ThreadLocal.withInitial(Output::new);
+
+    private final JavaSerializer javaSerializer = new JavaSerializer();
+
+    @Override
+    public byte[] serialize(Object obj) {
+        Output output = OUTPUT.get();
+        if (output.inUse) {
+            //jdk序列化的对象在writeObject中又调用了序列化
+            output = new Output();
+        }
+        output.inUse = true;
+        try {
+            write(output, obj);
+            return output.toByteArray();
+        } finally {
+            output.reset();
+        }
+    }
+
+    @Override
+    public Object deserialize(byte[] bytes) {
+        if (bytes == null || bytes.length == 0) {
+            throw new SerializationException("empty bytes");
+        }
+        if (JavaSerializer.isJavaSerialized(bytes)) {
+            return javaSerializer.deserialize(bytes);
+        }
+        Input input = new Input(bytes);
+        Object value = read(input);
+        if (input.position != bytes.length) {
+            throw new SerializationException("trailing " + (bytes.length - input.position) + " bytes after value");
+        }
+        return value;
+    }
+
+    private void write(Output output, Object obj) {
+        if (obj == null) {
+            output.writeByte(NULL);
+            return;
+        }
+        Class<?> type = obj.getClass();
+        if (type == String.class) {
+            output.writeByte(STRING);
+            output.writeString((String) obj);
+        } else if (type == Integer.class) {
+            output.writeByte(INTEGER);
+            output.writeVarLong((Integer) obj);
+        } else if (type == Long.class) {
+            output.writeByte(LONG);
+            output.writeVarLong((Long) obj);
+        } else if (type == Double.class) {
+            output.writeByte(DOUBLE);
+            output.writeFixedLong(Double.doubleToLongBits((Double) obj));
+        } else if (type == Boolean.class) {
+            output.writeByte((Boolean) obj ? TRUE : FALSE);
+        } else if (type == byte[].class) {
+            output.writeByte(BYTES);
+            output.writeBytes((byte[]) obj, 0, ((byte[]) obj).length);
+        } else if (type == Date.class) {
+            output.writeByte(DATE);
+            output.writeVarLong(((Date) obj).getTime());
+        } else if (type == ArrayList.class) {
+            output.writeByte(ARRAY_LIST);
+            writeCollection(output, (Collection<?>) obj);
+        } else if (type == HashSet.class) {
+            output.writeByte(HASH_SET);
+            writeCollection(output, (Collection<?>) obj);
+        } else if (type == LinkedHashSet.class) {
+            output.writeByte(LINKED_HASH_SET);
+            writeCollection(output, (Collection<?>) obj);
+        } else if (type == HashMap.class) {
+            output.writeByte(HASH_MAP);
+            writeMap(output, (Map<?, ?>) obj);
+        } else if (type == LinkedHashMap.class) {
+            output.writeByte(LINKED_HASH_MAP);
+            writeMap(output, (Map<?, ?>) obj);
+        } else {
+            byte[] bytes = javaSerializer.serialize(obj);
+            output.writeByte(JAVA);
+            output.writeBytes(bytes, 0, bytes.length);
+        }
+    }
+
+    private void writeCollection(Output output, Collection<?> collection) {
+        output.writeVarLong(collection.size());
+        for (Object element : collection) {
+            write(output, element);
+        }
+    }
+
+    private void writeMap(Output output, Map<?, ?> map) {
+        output.writeVarLong(map.size());
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            write(output, entry.getKey());
+            write(output, entry.getValue());
+        }
+    }
+
+    private Object read(Input input) {
+        byte tag = input.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return input.readString();
+            case INTEGER:
+                return (int) input.readVarLong();
+            case LONG:
+                return input.readVarLong();
+            case DOUBLE:
+                return Double.longBitsToDouble(input.readFixedLong());
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case BYTES:
+                return input.readBytes();
+            case DATE:
+                return new Date(input.readVarLong());
+            case ARRAY_LIST: {
+                int size = input.readSize();
+                return readCollection(input, new ArrayList<>(size), size);
+            }
+            case HASH_SET: {
+                int size = input.readSize();
+                return readCollection(input, new HashSet<>(capacity(size)), size);
+            }
+            case LINKED_HASH_SET: {
+                int size = input.readSize();
+                return readCollection(input, new LinkedHashSet<>(capacity(size)), size);
+            }
+            case HASH_MAP: {
+                int size = input.readSize();
+                return readMap(input, new HashMap<>(capacity(size)), size);
+            }
+            case LINKED_HASH_MAP: {
+                int size = input.readSize();
+                return readMap(input, new LinkedHashMap<>(capacity(size)), size);
+            }
+            case JAVA: {
+                int length = input.readSize();
+                Object value = javaSerializer.deserialize(input.buffer, input.position, length);
+                input.position += length;
+                return value;
+            }
+            default:
+                throw new SerializationException("unknown type tag " + tag + " at " + (input.position - 1));
+        }
+    }
+
+    private Collection<Object> readCollection(Input input, Collection<Object> collection, int size) {
+        for (int i = 0; i < size; i++) {
+            collection.add(read(input));
+        }
+        return collection;
+    }
+
+    private Map<Object, Object> readMap(Input input, Map<Object, Object> map, int size) {
+        for (int i = 0; i < size; i++) {
+            Object key = read(input);
+            map.put(key, read(input));
+        }
+        return map;
+    }
+
+    private static int capacity(int size) {
+        return (int) (size / 0.75f) + 1;
+    }
+
+    private static class Output {
+        private byte[] buffer = new byte[256];
+        private int position;
+        private boolean inUse;
+
+        void writeByte(int value) {
+            ensureCapacity(1);
+            buffer[position++] = (byte) value;
+        }
+
+        void writeVarLong(long value) {
+            //zigzag,负数也只占少量字节
+            long zigzag = (value << 1) ^ (value >> 63);
+            ensureCapacity(10);
+            while ((zigzag & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((zigzag & 0x7F) | 0x80);
+                zigzag >>>= 7;
+            }
+            buffer[position++] = (byte) zigzag;
+        }
+
+        void writeFixedLong(long value) {
+            ensureCapacity(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[position++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeBytes(byte[] value, int offset, int length) {
+            writeVarLong(length);
+            ensureCapacity(length);
+            System.arraycopy(value, offset, buffer, position, length);
+            position += length;
+        }
+
+        void writeString(String value) {
+            //大部分字符串是ASCII,先按每个字符一个字节直接写入,遇到非ASCII字符再整体按UTF-8编码
+            int length = value.length();
+            if (length < 64) {
+                //长度的zigzag变长整数只占1字节
+                ensureCapacity(1 + length);
+                int start = position;
+                buffer[position++] = (byte) (length << 1);
+                for (int i = 0; i < length; i++) {
+                    char c = value.charAt(i);
+                    if (c >= 0x80) {
+                        position = start;
+                        writeUtf8(value);
+                        return;
+                    }
+                    buffer[position++] = (byte) c;
+                }
+                return;
+            }
+            writeUtf8(value);
+        }
+
+        private void writeUtf8(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeBytes(bytes, 0, bytes.length);
+        }
+
+        private void ensureCapacity(int size) {
+            if (position + size > buffer.length) {
+                byte[] newBuffer = new byte[Math.max(buffer.length * 2, position + size)];
+                System.arraycopy(buffer, 0, newBuffer, 0, position);
+                buffer = newBuffer;
+            }
+        }
+
+        byte[] toByteArray() {
+            byte[] result = new byte[position];
+            System.arraycopy(buffer, 0, result, 0, position);
+            return result;
+        }
+
+        void reset() {
+            position = 0;
+            inUse = false;
+            if (buffer.length > MAX_RETAINED_BUFFER) {
+                buffer = new byte[256];
+            }
+        }
+    }
+
+    private static class Input {
+        private final byte[] buffer;
+        private int position;
+
+        Input(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        byte readByte() {
+            if (position >= buffer.length) {
+                throw new SerializationException("unexpected end of data");
+            }
+            return buffer[position++];
+        }
+
+        long readVarLong() {
+            long zigzag = 0;
+            for (int shift = 0; ; shift += 7) {
+                if (shift >= 64) {
+                    throw new SerializationException("malformed varint at " + position);
+                }
+                int b = readByte() & 0xFF;
+                zigzag |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+
+        long readFixedLong() {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (readByte() & 0xFF);
+            }
+            return value;
+        }
+
+        int readSize() {
+            long size = readVarLong();
+            if (size < 0 || size > buffer.length - position) {
+                //每个元素至少占1字节,超过剩余字节数说明数据已损坏
+                throw new SerializationException("malformed size " + size + " at " + position);
+            }
+            return (int) size;
+        }
+
+        byte[] readBytes() {
+            int length = readSize();
+            byte[] value = new byte[length];
+            System.arraycopy(buffer, position, value, 0, length);
+            position += length;
+            return value;
+        }
+
+        String readString() {
+            int length = readSize();
+            String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+}
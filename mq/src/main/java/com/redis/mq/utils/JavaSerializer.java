@@ -0,0 +1,53 @@
+package com.redis.mq.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * @author: xushu
+ * @date: 2018/10/24 16:20
+ * @description: jdk自带的序列化,旧版本UtilSerialize写入的数据都是这种格式
+ */
+public class JavaSerializer implements Serializer {
+
+    /**
+     * ObjectOutputStream写入的数据总是以0xACED开头
+     */
+    private static final byte MAGIC_0 = (byte) 0xAC;
+    private static final byte MAGIC_1 = (byte) 0xED;
+
+    @Override
+    public byte[] serialize(Object obj) {
+        ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(byteOut)) {
+            oos.writeObject(obj);
+        } catch (Exception e) {
+            throw new SerializationException("java serialize failed, type=" + (obj == null ? null : obj.getClass()), e);
+        }
+        return byteOut.toByteArray();
+    }
+
+    @Override
+    public Object deserialize(byte[] bytes) {
+        return deserialize(bytes, 0, bytes.length);
+    }
+
+    Object deserialize(byte[] bytes, int offset, int length) {
+        try (ObjectInputStream objIn = new ObjectInputStream(new ByteArrayInputStream(bytes, offset, length))) {
+            return objIn.readObject();
+        } catch (Exception e) {
+            throw new SerializationException("java deserialize failed", e);
+        }
+    }
+
+    /**
+     * 是否为jdk序列化的数据
+     * @param bytes
+     * @return
+     */
+    static boolean isJavaSerialized(byte[] bytes) {
+        return bytes != null && bytes.length >= 2 && bytes[0] == MAGIC_0 && bytes[1] == MAGIC_1;
+    }
+}
@@ -0,0 +1,231 @@
+package com.redis.mq.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+/**
+ * @author: xushu
+ * @date: 2018/11/5 10:30
+ * @description: 自动管道.多个线程提交的命令进入固定几条连接各自的队列,
+ * 每条连接由一个线程把队列中积累的命令一次写入管道,sync后通过future返回结果.
+ * 并发越高每次管道中的命令越多,连接数固定不随线程数增长.
+ * 等待超时的命令如果还没有被发送线程取走,从队列中撤回,保证超时返回的命令不会在之后被执行
+ */
+public class RedisAutoPipeline implements AutoCloseable {
+
+    private static Logger log = LoggerFactory.getLogger(RedisAutoPipeline.class);
+
+    /**
+     * 每次管道最多写入的命令条数
+     */
+    private static final int MAX_BATCH_SIZE = 512;
+
+    private final String host;
+    private final int port;
+    private final int timeout;
+    private final String auth;
+    private final Lane[] lanes;
+    private final AtomicInteger nextLane = new AtomicInteger();
+    private volatile boolean closed;
+    /**
+     * 已执行的命令数和管道次数,两者之比为平均每次管道的命令数
+     */
+    private final LongAdder commands = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+
+    /**
+     * @param host
+     * @param port
+     * @param timeout 连接和读写超时(毫秒)
+     * @param auth 密码,为null时不认证
+     * @param connections 连接数
+     */
+    public RedisAutoPipeline(String host, int port, int timeout, String auth, int connections) {
+        if (connections <= 0) {
+            throw new IllegalArgumentException("connections must be positive");
+        }
+        this.host = host;
+        this.port = port;
+        this.timeout = timeout;
+        this.auth = auth;
+        this.lanes = new Lane[connections];
+        for (int i = 0; i < connections; i++) {
+            lanes[i] = new Lane("redisMq-pipeline-" + i);
+            lanes[i].thread.start();
+        }
+    }
+
+    /**
+     * 执行一条命令,与其他线程的命令合并到同一次管道中发送.
+     * 超时时命令还在队列中则撤回并抛出TimeoutException,命令一定没有执行;
+     * 已经发送的命令继续等待结果,发送线程的读超时保证等待有上限,调用方得到的总是命令真实的结果
+     * @param command 在管道中执行命令,返回命令的结果
+     * @param timeout 等待发送的最长时间(毫秒)
+     * @return 命令结果
+     * @throws ExecutionException redis返回错误或连接失败
+     * @throws TimeoutException 超时,命令没有发送
+     */
+    public <T> T execute(Function<Pipeline, Response<T>> command, long timeout) throws Exception {
+        if (closed) {
+            throw new IllegalStateException("RedisAutoPipeline closed");
+        }
+        Lane lane = lanes[(nextLane.getAndIncrement() & Integer.MAX_VALUE) % lanes.length];
+        Command<T> pending = new Command<>(command);
+        lane.queue.add(pending);
+        try {
+            return pending.future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            if (pending.taken.compareAndSet(false, true)) {
+                lane.queue.remove(pending);
+                pending.future.cancel(false);
+                throw e;
+            }
+            return pending.future.get();
+        }
+    }
+
+    /**
+     * 平均每次管道发送的命令条数
+     * @return
+     */
+    public double averageBatchSize() {
+        long flushCount = flushes.sum();
+        return flushCount == 0 ? 0 : (double) commands.sum() / flushCount;
+    }
+
+    /**
+     * 停止接收命令,队列中剩余的命令发送完后关闭连接
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Lane lane : lanes) {
+            try {
+                lane.thread.join(timeout);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * 一条连接及其命令队列
+     */
+    private class Lane implements Runnable {
+        private final BlockingQueue<Command<?>> queue = new LinkedBlockingQueue<>();
+        private final Thread thread;
+        private Jedis jedis;
+
+        private Lane(String name) {
+            this.thread = new Thread(this, name);
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            List<Command<?>> batch = new ArrayList<>(MAX_BATCH_SIZE);
+            while (!closed || !queue.isEmpty()) {
+                try {
+                    Command<?> first = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                    //跳过调用方已经超时撤回的命令
+                    batch.removeIf(command -> !command.taken.compareAndSet(false, true));
+                    if (!batch.isEmpty()) {
+                        flush(batch);
+                    }
+                } catch (InterruptedException e) {
+                    closed = true;
+                } finally {
+                    batch.clear();
+                }
+            }
+            if (jedis != null) {
+                jedis.close();
+            }
+        }
+
+        private void flush(List<Command<?>> batch) {
+            List<Response<?>> responses = new ArrayList<>(batch.size());
+            try {
+                Pipeline pipeline = connection().pipelined();
+                for (Command<?> command : batch) {
+                    responses.add(command.send(pipeline));
+                }
+                pipeline.sync();
+            } catch (Exception e) {
+                log.error("redis自动管道执行失败,重新建立连接", e);
+                if (jedis != null) {
+                    jedis.close();
+                    jedis = null;
+                }
+                for (Command<?> command : batch) {
+                    command.future.completeExceptionally(e);
+                }
+                return;
+            }
+            commands.add(batch.size());
+            flushes.increment();
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).complete(responses.get(i));
+            }
+        }
+
+        private Jedis connection() {
+            if (jedis == null) {
+                Jedis connection = new Jedis(host, port, timeout);
+                if (auth != null) {
+                    connection.auth(auth);
+                }
+                jedis = connection;
+            }
+            return jedis;
+        }
+    }
+
+    private static class Command<T> {
+        private final Function<Pipeline, Response<T>> command;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        /**
+         * 发送线程取走命令和调用方超时撤回命令互斥,只有一方能设置成功
+         */
+        private final AtomicBoolean taken = new AtomicBoolean();
+
+        private Command(Function<Pipeline, Response<T>> command) {
+            this.command = command;
+        }
+
+        private Response<T> send(Pipeline pipeline) {
+            return command.apply(pipeline);
+        }
+
+        @SuppressWarnings("unchecked")
+        private void complete(Response<?> response) {
+            try {
+                future.complete(((Response<T>) response).get());
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -1,14 +1,27 @@
 package com.redis.mq.utils;
 
 import com.alibaba.fastjson.JSON;
-import java.text.MessageFormat;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.util.CollectionUtils;
@@ -16,14 +29,25 @@ import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
 import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.Pipeline;
 import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.StreamEntryID;
 import redis.clients.jedis.Transaction;
 import redis.clients.jedis.Tuple;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+import redis.clients.jedis.util.SafeEncoder;
 
 
 @Configuration
-public class RedisCache {
+public class RedisCache implements InitializingBean, DisposableBean {
     private static final int LOCK_DEFAULT_EXPIRE_TIME = 3;
+    /**
+     * scan每次遍历的key个数
+     */
+    private static final int SCAN_COUNT = 1000;
     private static Logger log = LoggerFactory.getLogger(RedisCache.class);
     private static String DEFAULT_KEY_PREFIX = "";
     private static int DEFAULT_EXPIRE_TIME = 0;
@@ -32,11 +56,50 @@ public class RedisCache {
     private static String AUTH = null;
     private static int MAX_ACTIVE = 300;
     private static int MAX_IDLE = 200;
+    private static int MIN_IDLE = 8;
     private static int MAX_WAIT = 10000;
     private static int TIMEOUT = 10000;
-    private static boolean TEST_ON_BORROW = true;
-    private static JedisPool jedisPool = null;
-    private static Jedis jedis = null;
+    /**
+     * 借连接时不再PING校验,每次操作少一次往返.空闲连接由后台定期PING,失效的连接在空闲时剔除
+     */
+    private static boolean TEST_ON_BORROW = false;
+    private static boolean TEST_WHILE_IDLE = true;
+    private static long TIME_BETWEEN_EVICTION_RUNS = 30000L;
+    /**
+     * 空闲超过该时间且空闲连接多于MIN_IDLE时才释放,保证预热的连接不被回收
+     */
+    private static long SOFT_MIN_EVICTABLE_IDLE_TIME = 60000L;
+    private static volatile JedisPool jedisPool = null;
+    /**
+     * 借连接失败的次数
+     */
+    private static final LongAdder BORROW_FAILURES = new LongAdder();
+    /**
+     * 是否开启自动管道,开启后单条读命令和lua脚本由固定几条连接合并发送,不再每次从连接池借连接
+     */
+    private static boolean PIPELINE_ENABLED = false;
+    private static int PIPELINE_CONNECTIONS = 4;
+    private static volatile RedisAutoPipeline autoPipeline = null;
+    /**
+     * 是否开启熔断.开启后连接的读写超时和借连接等待时间都不超过OPERATION_TIMEOUT,
+     * 最近CIRCUIT_WINDOW次操作中失败或慢操作(超过SLOW_CALL_THRESHOLD)的比例达到阈值时熔断,之后的操作直接抛出RedisUnavailableException
+     */
+    private static boolean CIRCUIT_ENABLED = false;
+    private static int OPERATION_TIMEOUT = 1000;
+    private static long SLOW_CALL_THRESHOLD = 500L;
+    private static int CIRCUIT_WINDOW = 20;
+    private static int FAILURE_RATE_THRESHOLD = 50;
+    private static int SLOW_CALL_RATE_THRESHOLD = 50;
+    private static long PROBE_INTERVAL = 1000L;
+    private static volatile RedisCircuitBreaker circuitBreaker = null;
+    /**
+     * 开启熔断时记录借出连接的时间,归还时统计操作耗时
+     */
+    private static final Map<Jedis, Long> BORROW_TIMES = new ConcurrentHashMap<>();
+    /**
+     * lua脚本 -> sha1,避免每次调用都把脚本全文发给redis
+     */
+    private static final Map<String, String> SCRIPT_SHA_CACHE = new ConcurrentHashMap<>();
 
     public RedisCache() {
     }
@@ -51,12 +114,182 @@ public class RedisCache {
     }
 
     private static synchronized void init() {
+        if (jedisPool != null) {
+            return;
+        }
         JedisPoolConfig config = new JedisPoolConfig();
         config.setMaxIdle(MAX_IDLE);
-        config.setMaxWaitMillis((long)MAX_WAIT);
+        config.setMinIdle(Math.min(MIN_IDLE, MAX_IDLE));
+        config.setMaxWaitMillis((long)(CIRCUIT_ENABLED ? Math.min(MAX_WAIT, OPERATION_TIMEOUT) : MAX_WAIT));
         config.setTestOnBorrow(TEST_ON_BORROW);
+        config.setTestWhileIdle(TEST_WHILE_IDLE);
+        config.setTimeBetweenEvictionRunsMillis(TIME_BETWEEN_EVICTION_RUNS);
+        config.setNumTestsPerEvictionRun(-1);
+        config.setMinEvictableIdleTimeMillis(-1L);
+        config.setSoftMinEvictableIdleTimeMillis(SOFT_MIN_EVICTABLE_IDLE_TIME);
         config.setMaxTotal(MAX_ACTIVE);
-        jedisPool = new JedisPool(config, ADDR, PORT, TIMEOUT, AUTH);
+        if (CIRCUIT_ENABLED) {
+            circuitBreaker = new RedisCircuitBreaker(CIRCUIT_WINDOW, Math.max(1, CIRCUIT_WINDOW / 2),
+                FAILURE_RATE_THRESHOLD, SLOW_CALL_RATE_THRESHOLD, SLOW_CALL_THRESHOLD, PROBE_INTERVAL, RedisCache::ping);
+        }
+        if (PIPELINE_ENABLED) {
+            autoPipeline = new RedisAutoPipeline(ADDR, PORT, operationTimeout(), AUTH, PIPELINE_CONNECTIONS);
+        }
+        JedisPool pool = new JedisPool(config, ADDR, PORT, operationTimeout(), AUTH);
+        warmUp(pool);
+        jedisPool = pool;
+    }
+
+    /**
+     * 预先建立MIN_IDLE个连接,避免启动后第一批请求同时建立连接.redis不可用时只记录日志,之后按需建立连接
+     */
+    private static void warmUp(JedisPool pool) {
+        int minIdle = Math.min(MIN_IDLE, MAX_IDLE);
+        if (minIdle <= 0) {
+            return;
+        }
+
+        try {
+            pool.addObjects(minIdle);
+            log.info("Redis连接池预热完成,空闲连接数:{}", pool.getNumIdle());
+        } catch (Exception var3) {
+            log.error("Redis连接池预热失败", var3);
+        }
+
+    }
+
+    /**
+     * 单次操作的读写超时(毫秒),开启熔断时不超过OPERATION_TIMEOUT
+     */
+    private static int operationTimeout() {
+        return CIRCUIT_ENABLED ? Math.min(TIMEOUT, OPERATION_TIMEOUT) : TIMEOUT;
+    }
+
+    /**
+     * 熔断后的恢复探测,使用独立的连接,不依赖可能已被占满的连接池
+     */
+    private static boolean ping() {
+        Jedis jedis = null;
+
+        try {
+            jedis = new Jedis(ADDR, PORT, OPERATION_TIMEOUT);
+            if (AUTH != null) {
+                jedis.auth(AUTH);
+            }
+
+            return "PONG".equals(jedis.ping());
+        } catch (Exception var5) {
+            log.warn("redis恢复探测失败:{}", var5.getMessage());
+            return false;
+        } finally {
+            if (null != jedis) {
+                jedis.close();
+            }
+
+        }
+    }
+
+    /**
+     * 熔断器当前状态,未开启熔断时返回null
+     */
+    public static RedisCircuitBreaker.State circuitState() {
+        RedisCircuitBreaker breaker = circuitBreaker;
+        return breaker == null ? null : breaker.getState();
+    }
+
+    /**
+     * 应用启动时就创建连接池并预热,而不是等第一次调用
+     */
+    @Override
+    public void afterPropertiesSet() {
+        if (jedisPool == null) {
+            init();
+        }
+
+    }
+
+    /**
+     * 应用关闭时停止熔断探测和自动管道并关闭连接池,之后再调用时按当前配置重新创建
+     */
+    @Override
+    public void destroy() {
+        shutdown();
+    }
+
+    private static synchronized void shutdown() {
+        if (circuitBreaker != null) {
+            circuitBreaker.close();
+            circuitBreaker = null;
+        }
+        if (autoPipeline != null) {
+            autoPipeline.close();
+            autoPipeline = null;
+        }
+        if (jedisPool != null) {
+            jedisPool.close();
+            jedisPool = null;
+        }
+        BORROW_TIMES.clear();
+    }
+
+    /**
+     * 连接池当前的使用情况,连接池还未创建时返回null
+     */
+    public static RedisPoolMetrics poolMetrics() {
+        JedisPool pool = jedisPool;
+        if (pool == null) {
+            return null;
+        }
+
+        return new RedisPoolMetrics(pool.getNumActive(), pool.getNumIdle(), pool.getNumWaiters(),
+            pool.getMeanBorrowWaitTimeMillis(), pool.getMaxBorrowWaitTimeMillis(), BORROW_FAILURES.sum());
+    }
+
+    /**
+     * 是否通过自动管道发送命令
+     */
+    private static boolean autoPipelined() {
+        if (!PIPELINE_ENABLED) {
+            return false;
+        }
+        if (jedisPool == null) {
+            init();
+        }
+        return autoPipeline != null;
+    }
+
+    /**
+     * 通过自动管道发送命令,与其他线程的命令合并到同一次管道中,最多等待TIMEOUT毫秒
+     * @return 命令结果,redis返回的错误直接抛出
+     */
+    private static <T> T pipelined(Function<Pipeline, Response<T>> command) throws Exception {
+        RedisCircuitBreaker breaker = circuitBreaker;
+        if (breaker != null) {
+            breaker.acquire();
+        }
+        long start = System.nanoTime();
+        boolean failed = false;
+        try {
+            return autoPipeline.execute(command, (long)operationTimeout());
+        } catch (TimeoutException e) {
+            failed = true;
+            throw e;
+        } catch (ExecutionException e) {
+            failed = e.getCause() instanceof JedisConnectionException;
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } finally {
+            if (breaker != null) {
+                breaker.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), failed);
+            }
+        }
+    }
+
+    /**
+     * 自动管道的平均每次管道命令数,未开启时返回0
+     */
+    public static double autoPipelineBatchSize() {
+        RedisAutoPipeline pipeline = autoPipeline;
+        return pipeline == null ? 0 : pipeline.averageBatchSize();
     }
 
     public static String set(String cacheType, String key, String value) {
@@ -91,11 +324,13 @@ public class RedisCache {
                     jedis.expire(fullKey, expireSeconds);
                 }
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var9) {
             log.error("Redis设置单个值异常：{}", var9);
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -115,11 +350,13 @@ public class RedisCache {
                     jedis.expireAt(fullKey, (long)expireSeconds);
                 }
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var9) {
             log.error("Redis设置单个值异常：{}", var9);
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -156,11 +393,13 @@ public class RedisCache {
                     jedis.expire(fullKey, expireTime);
                 }
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var9) {
             log.error("Redis设置Object值异常：{}", var9);
         } finally {
             if (jedis != null) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -181,11 +420,13 @@ public class RedisCache {
                     jedis.expireAt(fullKey, expireTime);
                 }
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var10) {
             log.error("Redis设置Object值异常：{}", var10);
         } finally {
             if (jedis != null) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -206,18 +447,98 @@ public class RedisCache {
 
         String var2;
         try {
+            if (autoPipelined()) {
+                return pipelined(pipeline -> pipeline.get(fullKey));
+            }
+
             jedis = getJedis();
             if (jedis == null) {
                 return null;
             }
 
             var2 = jedis.get(fullKey);
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var6) {
             log.error("Redis获取单个值数据异常：{}", var6);
             return null;
         } finally {
             if (jedis != null) {
-                jedis.close();
+                release(jedis);
+            }
+
+        }
+
+        return var2;
+    }
+
+    public static List<byte[]> mgetBytes(String prefix, String cacheType, List<String> keys) {
+        return mgetBytes(keys.stream().map(key -> SafeEncoder.encode(generateFullKey(prefix, cacheType, key))).toArray(byte[][]::new));
+    }
+
+    /**
+     * @param fullKeys 已编码好的完整key
+     */
+    public static List<byte[]> mgetBytes(byte[]... fullKeys) {
+        Jedis jedis = null;
+
+        List<byte[]> var2;
+        try {
+            if (autoPipelined()) {
+                return pipelined(pipeline -> pipeline.mget(fullKeys));
+            }
+
+            jedis = getJedis();
+            if (jedis == null) {
+                return null;
+            }
+
+            var2 = jedis.mget(fullKeys);
+        } catch (RedisUnavailableException var0) {
+            throw var0;
+        } catch (Exception var6) {
+            log.error("Redis批量获取二进制数据异常：{}", var6);
+            return null;
+        } finally {
+            if (jedis != null) {
+                release(jedis);
+            }
+
+        }
+
+        return var2;
+    }
+
+    public static byte[] getBytes(String prefix, String cacheType, String key) {
+        return getBytes(SafeEncoder.encode(generateFullKey(prefix, cacheType, key)));
+    }
+
+    /**
+     * @param fullKey 已编码好的完整key
+     */
+    public static byte[] getBytes(byte[] fullKey) {
+        Jedis jedis = null;
+
+        byte[] var2;
+        try {
+            if (autoPipelined()) {
+                return pipelined(pipeline -> pipeline.get(fullKey));
+            }
+
+            jedis = getJedis();
+            if (jedis == null) {
+                return null;
+            }
+
+            var2 = jedis.get(fullKey);
+        } catch (RedisUnavailableException var0) {
+            throw var0;
+        } catch (Exception var6) {
+            log.error("Redis获取二进制数据异常：{}", var6);
+            return null;
+        } finally {
+            if (jedis != null) {
+                release(jedis);
             }
 
         }
@@ -245,11 +566,13 @@ public class RedisCache {
                     return var3;
                 }
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var7) {
             log.error("Redis获取Object数据异常：{}", var7);
         } finally {
             if (jedis != null) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -275,11 +598,41 @@ public class RedisCache {
                 jedis.del(fullKey);
                 result = Boolean.TRUE;
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var7) {
             log.error("删除Redis数据异常：{}", var7);
         } finally {
             if (jedis != null) {
-                jedis.close();
+                release(jedis);
+            }
+
+        }
+
+        return result;
+    }
+
+    /**
+     * 异步删除,redis在后台线程释放内存,不阻塞其他命令
+     * @param fullKeys 已编码好的完整key
+     * @return 删除的key个数,失败返回null
+     */
+    public static Long unlink(byte[]... fullKeys) {
+        Jedis jedis = null;
+        Long result = null;
+
+        try {
+            jedis = getJedis();
+            if (jedis != null) {
+                result = jedis.unlink(fullKeys);
+            }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
+        } catch (Exception var7) {
+            log.error("异步删除Redis数据异常：{}", var7);
+        } finally {
+            if (jedis != null) {
+                release(jedis);
             }
 
         }
@@ -304,11 +657,13 @@ public class RedisCache {
             if (jedis != null) {
                 result = jedis.append(fullKey, value);
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var8) {
             log.error("追加Redis数据异常:{}", var8);
         } finally {
             if (jedis != null) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -333,11 +688,13 @@ public class RedisCache {
             if (jedis != null) {
                 result = jedis.exists(fullKey);
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var7) {
             log.error("检查key是否存在异常：{}", var7);
         } finally {
             if (jedis != null) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -349,15 +706,17 @@ public class RedisCache {
         Jedis jedis = null;
 
         try {
-            jedis = getJedis();
+            jedis = getJedis(false);
             if (null != jedis) {
                 jedis.subscribe(subscriber, new String[]{channelName});
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var7) {
             log.error("订阅频道失败", var7);
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -373,11 +732,13 @@ public class RedisCache {
             if (null != jedis) {
                 result = jedis.publish(channel, msg);
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var8) {
             log.error("向频道发送消息失败", var8);
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -402,11 +763,13 @@ public class RedisCache {
             if (null != jedis) {
                 result = jedis.hget(key, field);
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var8) {
             log.error("redis获取hash值异常", var8);
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -442,11 +805,13 @@ public class RedisCache {
                     jedis.expire(key, expireTime);
                 }
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var10) {
             log.error("redis设置hash值异常", var10);
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -473,11 +838,13 @@ public class RedisCache {
                     jedis.expire(key, expireTime);
                 }
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var11) {
             log.error("redis设置hash值异常", var11);
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -501,11 +868,13 @@ public class RedisCache {
                     jedis.expire(key, expireTime);
                 }
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var10) {
             log.error("redis设置hash值异常", var10);
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -530,11 +899,13 @@ public class RedisCache {
             if (null != jedis) {
                 result = jedis.hkeys(key);
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var7) {
             log.error("redis获取keys异常", var7);
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -559,11 +930,13 @@ public class RedisCache {
             if (null != jedis) {
                 result = jedis.hgetAll(key);
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var7) {
             log.error("redis获取key的所有键值对异常", var7);
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -584,11 +957,13 @@ public class RedisCache {
             if (null != jedis) {
                 result = jedis.hdel(key, new String[]{field});
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var8) {
             log.error("redis删除hash值异常", var8);
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -625,11 +1000,13 @@ public class RedisCache {
 
                 Thread.sleep(10L);
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var9) {
             log.error("redis加锁失败", new Object[]{var9});
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -645,11 +1022,13 @@ public class RedisCache {
             jedis = getJedis();
             jedis.del(key);
             result = true;
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var7) {
             log.error("redis解锁失败", new Object[]{var7});
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -670,11 +1049,13 @@ public class RedisCache {
             if (null != jedis) {
                 result = jedis.hexists(key, field);
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var8) {
             log.error("redis判断hash值是否存在异常", var8);
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -743,11 +1124,13 @@ public class RedisCache {
             if (null != jedis) {
                 result = jedis.lpush(key, items);
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var8) {
             log.error("redis lpush操作异常", var8);
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -764,11 +1147,13 @@ public class RedisCache {
             if (null != jedis) {
                 result = jedis.lpop(key);
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var7) {
             log.error("redis lpop操作异常", var7);
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -785,11 +1170,13 @@ public class RedisCache {
             if (null != jedis) {
                 result = jedis.rpush(key, items);
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var8) {
             log.error("redis rpush操作异常", var8);
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -806,11 +1193,13 @@ public class RedisCache {
             if (null != jedis) {
                 result = jedis.rpop(key);
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var7) {
             log.error("redis rpop操作异常", var7);
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -828,11 +1217,13 @@ public class RedisCache {
                 result = jedis.lrange(key, start, end);
                 jedis.ltrim(key, start, end);
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var11) {
             log.error("redis lrange操作异常", var11);
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -853,11 +1244,13 @@ public class RedisCache {
             if (null != jedis) {
                 result = jedis.zincrby(key, score, member);
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var10) {
             log.error("redis执行zincrby存在异常", var10);
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -878,11 +1271,13 @@ public class RedisCache {
             if (null != jedis) {
                 result = jedis.zscore(key, member);
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var8) {
             log.error("redis执行zscore存在异常", var8);
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -903,11 +1298,13 @@ public class RedisCache {
             if (null != jedis) {
                 result = jedis.zrangeWithScores(key, (long)start, end);
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var10) {
             log.error("redis执行zrangeWithScores存在异常", var10);
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -919,6 +1316,10 @@ public class RedisCache {
         return zrangeWithScore(generateFullKey(cacheType, key), min, max);
     }
 
+    public static Set<String> zrangeByScore(String prefix, String cacheType, String key, double min, double max) {
+        return zrangeWithScore(generateFullKey(prefix, cacheType, key), min, max);
+    }
+
     public static Set<String> zrangeWithScore(String key, double min, double max) {
         Jedis jedis = null;
         Set result = null;
@@ -928,11 +1329,13 @@ public class RedisCache {
             if (null != jedis) {
                 result = jedis.zrangeByScore(key, min, max);
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var11) {
             log.error("redis执行zrangeWithScores存在异常", var11);
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -960,11 +1363,13 @@ public class RedisCache {
                     result = (String)set.iterator().next();
                 }
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var7) {
             log.error("redis执行zrangeWithScores存在异常", var7);
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -981,11 +1386,13 @@ public class RedisCache {
             if (null != jedis) {
                 result = jedis.zrangeByScore(key, min, max);
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var9) {
             log.error("redis执行zrangeWithScores存在异常", var9);
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -1021,11 +1428,13 @@ public class RedisCache {
 
                 result = jedis.zadd(key, score, str);
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var11) {
             log.error("redis执行zadd存在异常", var11);
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -1042,11 +1451,40 @@ public class RedisCache {
             if (null != jedis) {
                 result = jedis.zadd(key, score, member);
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var10) {
             log.error("redis执行zadd存在异常", var10);
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
+            }
+
+        }
+
+        return result;
+    }
+
+    /**
+     * @param fullKey 已编码好的完整key
+     * @param member 二进制成员
+     */
+    public static Long zadd(byte[] fullKey, double score, byte[] member) {
+        Jedis jedis = null;
+        Long result = null;
+
+        try {
+            jedis = getJedis();
+            if (null != jedis) {
+                result = jedis.zadd(fullKey, score, member);
+            }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
+        } catch (Exception var10) {
+            log.error("redis执行zadd存在异常", var10);
+        } finally {
+            if (null != jedis) {
+                release(jedis);
             }
 
         }
@@ -1075,11 +1513,108 @@ public class RedisCache {
             if (null != jedis) {
                 result = jedis.keys(key + ":*");
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var7) {
             log.error("redis模糊查询所有key时发生异常", var7);
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
+            }
+
+        }
+
+        return result;
+    }
+
+    public static Long sadd(String prefix, String cacheType, String key, String... members) {
+        return sadd(generateFullKey(prefix, cacheType, key), members);
+    }
+
+    public static Long sadd(String key, String... members) {
+        Jedis jedis = null;
+        Long result = null;
+
+        try {
+            jedis = getJedis();
+            if (null != jedis) {
+                result = jedis.sadd(key, members);
+            }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
+        } catch (Exception var7) {
+            log.error("redis执行sadd存在异常", var7);
+        } finally {
+            if (null != jedis) {
+                release(jedis);
+            }
+
+        }
+
+        return result;
+    }
+
+    public static Set<String> smembers(String prefix, String cacheType, String key) {
+        return smembers(generateFullKey(prefix, cacheType, key));
+    }
+
+    public static Set<String> smembers(String key) {
+        Jedis jedis = null;
+        Set<String> result = null;
+
+        try {
+            jedis = getJedis();
+            if (null != jedis) {
+                result = jedis.smembers(key);
+            }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
+        } catch (Exception var7) {
+            log.error("redis执行smembers存在异常", var7);
+        } finally {
+            if (null != jedis) {
+                release(jedis);
+            }
+
+        }
+
+        return result;
+    }
+
+    public static Set<String> scan(String prefix, String cacheType) {
+        return scan(generateFullKey(prefix, cacheType, "*"));
+    }
+
+    /**
+     * 通过scan游标分批查找匹配的key,与keys不同,不会长时间阻塞redis
+     * @param pattern
+     * @return 失败返回null
+     */
+    private static Set<String> scan(String pattern) {
+        Jedis jedis = null;
+        Set<String> result = null;
+
+        try {
+            //一次scan包含多次往返,耗时随key数量增长,不计入熔断的慢操作统计
+            jedis = getJedis(false);
+            if (null != jedis) {
+                Set<String> keys = new HashSet<>();
+                ScanParams params = new ScanParams().match(pattern).count(SCAN_COUNT);
+                String cursor = ScanParams.SCAN_POINTER_START;
+                do {
+                    ScanResult<String> scanResult = jedis.scan(cursor, params);
+                    keys.addAll(scanResult.getResult());
+                    cursor = scanResult.getCursor();
+                } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+                result = keys;
+            }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
+        } catch (Exception var8) {
+            log.error("redis scan查询key时发生异常", var8);
+        } finally {
+            if (null != jedis) {
+                release(jedis);
             }
 
         }
@@ -1096,11 +1631,13 @@ public class RedisCache {
             if (null != jedis) {
                 result = jedis.zcard(key);
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var7) {
             log.error("redis执行zcard存在异常", var7);
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -1140,11 +1677,13 @@ public class RedisCache {
 
                 result = jedis.zrem(key, new String[]{str});
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var9) {
             log.error("redis删除zset值异常", var9);
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -1161,11 +1700,40 @@ public class RedisCache {
             if (null != jedis) {
                 result = jedis.zrem(key, new String[]{member});
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var8) {
             log.error("redis删除zset值异常", var8);
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
+            }
+
+        }
+
+        return result;
+    }
+
+    public static Long zremrangeByScore(String prefix, String cacheType, String key, double min, double max) {
+        return zremrangeByScore(generateFullKey(prefix, cacheType, key), min, max);
+    }
+
+    public static Long zremrangeByScore(String key, double min, double max) {
+        Long result = 0L;
+        Jedis jedis = null;
+
+        try {
+            jedis = getJedis();
+            if (null != jedis) {
+                result = jedis.zremrangeByScore(key, min, max);
+            }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
+        } catch (Exception var11) {
+            log.error("redis删除zset值异常", var11);
+        } finally {
+            if (null != jedis) {
+                release(jedis);
             }
 
         }
@@ -1182,11 +1750,13 @@ public class RedisCache {
             if (null != jedis) {
                 result = jedis.zremrangeByRank(key, start, end);
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var11) {
             log.error("redis删除zset值异常", var11);
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -1214,11 +1784,13 @@ public class RedisCache {
                     }
                 }
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var12) {
             log.error("redis zdiffstore操作异常", var12);
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -1244,11 +1816,13 @@ public class RedisCache {
                     }
                 }
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var12) {
             log.error("redis sunionstore", var12);
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -1269,11 +1843,13 @@ public class RedisCache {
             if (null != jedis) {
                 result = jedis.incr(key);
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var7) {
             log.error("redis执行incr存在异常", var7);
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -1281,20 +1857,34 @@ public class RedisCache {
         return result;
     }
 
-    public static <R> R execOnSameRedisConn(Function<RedisCache.RedisTransaction, R> function) {
+    public static Map<StreamEntryID, byte[]> xrange(String prefix, String cacheType, String key, StreamEntryID start,
+        StreamEntryID end, int count, String field) {
+        return xrange(generateFullKey(prefix, cacheType, key), start, end, count, field);
+    }
+
+    /**
+     * 读取stream中[start, end]区间内的消息
+     * @return entry id -> 指定字段的值(二进制)
+     */
+    private static Map<StreamEntryID, byte[]> xrange(String key, StreamEntryID start, StreamEntryID end, int count,
+        String field) {
         Jedis jedis = null;
-        R result = null;
+        Map<StreamEntryID, byte[]> result = null;
 
         try {
             jedis = getJedis();
             if (null != jedis) {
-                result = function.apply(new RedisCache.RedisTransaction(jedis));
+                List<byte[]> entries = jedis.xrange(SafeEncoder.encode(key), SafeEncoder.encode(start.toString()),
+                    SafeEncoder.encode(end.toString()), count);
+                result = streamEntries(entries, field);
             }
-        } catch (Exception var7) {
-            log.error("redis执行execOnSameRedisConn存在异常", var7);
+        } catch (RedisUnavailableException var0) {
+            throw var0;
+        } catch (Exception var10) {
+            log.error("redis执行xrange存在异常", var10);
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -1302,6 +1892,139 @@ public class RedisCache {
         return result;
     }
 
+    public static Map<StreamEntryID, byte[]> xreadGroup(String prefix, String cacheType, String key, String group,
+        String consumer, int count, boolean noAck, String field) {
+        return xreadGroup(generateFullKey(prefix, cacheType, key), group, consumer, count, noAck, field);
+    }
+
+    /**
+     * 以消费组的身份读取还未投递给本组的消息
+     * @return entry id -> 指定字段的值(二进制)
+     */
+    private static Map<StreamEntryID, byte[]> xreadGroup(String key, String group, String consumer, int count,
+        boolean noAck, String field) {
+        Jedis jedis = null;
+        Map<StreamEntryID, byte[]> result = null;
+
+        try {
+            jedis = getJedis();
+            if (null != jedis) {
+                Map<byte[], byte[]> streams = new HashMap<>(1);
+                streams.put(SafeEncoder.encode(key), SafeEncoder.encode(StreamEntryID.UNRECEIVED_ENTRY.toString()));
+                List<byte[]> reply = jedis.xreadGroup(SafeEncoder.encode(group), SafeEncoder.encode(consumer), count, 0L,
+                    noAck, streams);
+                //原始回复 [[key, [[id, [field, value ...]] ...]]],没有新消息时为null
+                if (CollectionUtils.isEmpty(reply)) {
+                    result = new LinkedHashMap<>();
+                } else {
+                    List<?> stream = (List<?>) ((List<?>) reply).get(0);
+                    result = streamEntries((List<?>) stream.get(1), field);
+                }
+            }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
+        } catch (Exception var11) {
+            log.error("redis执行xreadGroup存在异常", var11);
+        } finally {
+            if (null != jedis) {
+                release(jedis);
+            }
+
+        }
+
+        return result;
+    }
+
+    /**
+     * 解析二进制接口返回的原始stream entry列表
+     */
+    private static Map<StreamEntryID, byte[]> streamEntries(List<?> entries, String field) {
+        Map<StreamEntryID, byte[]> result = new LinkedHashMap<>();
+        if (entries == null) {
+            return result;
+        }
+        byte[] fieldBytes = SafeEncoder.encode(field);
+        for (Object entry : entries) {
+            List<?> idAndFields = (List<?>) entry;
+            List<?> fields = (List<?>) idAndFields.get(1);
+            byte[] value = null;
+            for (int i = 0; i + 1 < fields.size(); i += 2) {
+                if (Arrays.equals((byte[]) fields.get(i), fieldBytes)) {
+                    value = (byte[]) fields.get(i + 1);
+                }
+            }
+            result.put(new StreamEntryID(SafeEncoder.encode((byte[]) idAndFields.get(0))), value);
+        }
+        return result;
+    }
+
+    /**
+     * 连接在第一次需要时才从连接池借出,只执行lua脚本且开启自动管道时不占用连接池的连接
+     */
+    public static <R> R execOnSameRedisConn(Function<RedisCache.RedisTransaction, R> function) {
+        RedisCache.RedisTransaction transaction = new RedisCache.RedisTransaction();
+        R result = null;
+
+        try {
+            result = function.apply(transaction);
+        } catch (RedisUnavailableException var0) {
+            throw var0;
+        } catch (Exception var7) {
+            log.error("redis执行execOnSameRedisConn存在异常", var7);
+        } finally {
+            transaction.close();
+        }
+
+        return result;
+    }
+
+    /**
+     * 执行lua脚本,参数为二进制.优先evalsha,redis重启或脚本被清空时重新加载
+     */
+    private static Object evalScript(Jedis jedis, String script, List<String> keys, List<byte[]> args) {
+        List<byte[]> keyBytes = keys.stream().map(SafeEncoder::encode).collect(Collectors.toList());
+        String sha = SCRIPT_SHA_CACHE.get(script);
+        if (sha != null) {
+            try {
+                return jedis.evalsha(SafeEncoder.encode(sha), keyBytes, args);
+            } catch (JedisNoScriptException e) {
+                log.warn("redis中lua脚本已失效,重新加载");
+            }
+        }
+        SCRIPT_SHA_CACHE.put(script, jedis.scriptLoad(script));
+        return jedis.evalsha(SafeEncoder.encode(SCRIPT_SHA_CACHE.get(script)), keyBytes, args);
+    }
+
+    /**
+     * 通过自动管道执行lua脚本.管道中不能先script load,第一次发送脚本全文,redis会缓存脚本,之后发送本地计算的sha1
+     */
+    private static Object evalScriptPipelined(String script, List<String> keys, List<byte[]> args) throws Exception {
+        List<byte[]> keyBytes = keys.stream().map(SafeEncoder::encode).collect(Collectors.toList());
+        String sha = SCRIPT_SHA_CACHE.get(script);
+        if (sha != null) {
+            try {
+                return pipelined(pipeline -> pipeline.evalsha(SafeEncoder.encode(sha), keyBytes, args));
+            } catch (Exception e) {
+                if (e.getMessage() == null || !e.getMessage().startsWith("NOSCRIPT")) {
+                    throw e;
+                }
+                log.warn("redis中lua脚本已失效,重新发送脚本");
+            }
+        }
+        Object result = pipelined(pipeline -> pipeline.eval(SafeEncoder.encode(script), keyBytes, args));
+        SCRIPT_SHA_CACHE.put(script, sha1(script));
+        return result;
+    }
+
+    private static String sha1(String script) throws Exception {
+        byte[] digest = MessageDigest.getInstance("SHA-1").digest(script.getBytes(StandardCharsets.UTF_8));
+        StringBuilder sha = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sha.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sha.toString();
+    }
+
     public static Long getCurrentTimeMillisFromRedis() {
         Jedis jedis = null;
 
@@ -1317,11 +2040,13 @@ public class RedisCache {
                     return var5;
                 }
             }
+        } catch (RedisUnavailableException var0) {
+            throw var0;
         } catch (Exception var9) {
             log.error("redis获取时间戳异常", var9);
         } finally {
             if (null != jedis) {
-                jedis.close();
+                release(jedis);
             }
 
         }
@@ -1329,30 +2054,88 @@ public class RedisCache {
         return null;
     }
 
+    /**
+     * 直接拼接,不使用MessageFormat,避免每次解析格式串
+     */
     public static String generateFullKey(String prefix, String cacheType, String key) {
-        return MessageFormat.format("{0}:{1}:{2}", prefix, cacheType, key);
+        return prefix + ':' + cacheType + ':' + key;
     }
 
     public static String generateFullKey(String prefix, String cacheType1, String cacheType2, String key) {
-        return MessageFormat.format("{0}:{1}:{2}:{3}", prefix, cacheType1, cacheType2, key);
+        return prefix + ':' + cacheType1 + ':' + cacheType2 + ':' + key;
     }
 
     public static String generateFullKey(String cacheType, String key) {
-        return MessageFormat.format("{0}:{1}:{2}", DEFAULT_KEY_PREFIX, cacheType, key);
+        return DEFAULT_KEY_PREFIX + ':' + cacheType + ':' + key;
     }
 
+    /**
+     * 每次从连接池借出独立的连接,调用方用完后close归还.
+     * 不能放在静态字段中,否则并发调用的线程会拿到同一个连接
+     */
     private static Jedis getJedis() {
+        return getJedis(true);
+    }
+
+    /**
+     * @param timed 开启熔断时是否统计这次操作的耗时,subscribe等长时间占用连接的操作不统计
+     * @throws RedisUnavailableException 熔断器打开
+     */
+    private static Jedis getJedis(boolean timed) {
+        long start = System.nanoTime();
         try {
             if (jedisPool == null) {
                 init();
             }
 
-            jedis = jedisPool.getResource();
-        } catch (Exception var1) {
-            log.error("获取Redis实例异常:{}", var1);
+            if (circuitBreaker != null) {
+                circuitBreaker.acquire();
+            }
+
+            Jedis jedis = jedisPool.getResource();
+            if (timed && circuitBreaker != null) {
+                //从借出之后开始计时,等待连接池的时间不算在命令耗时里
+                BORROW_TIMES.put(jedis, System.nanoTime());
+            }
+
+            return jedis;
+        } catch (RedisUnavailableException var1) {
+            throw var1;
+        } catch (Exception var2) {
+            BORROW_FAILURES.increment();
+            if (circuitBreaker != null) {
+                circuitBreaker.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), true);
+            }
+
+            log.error("获取Redis实例异常:{}", var2);
+            return null;
+        }
+    }
+
+    /**
+     * 归还连接.开启熔断时统计这次操作的耗时,连接已损坏(超时、断开)视为失败
+     */
+    private static void release(Jedis jedis) {
+        Long start = BORROW_TIMES.remove(jedis);
+        if (start != null) {
+            record(jedis, start);
+        }
+
+        jedis.close();
+    }
+
+    /**
+     * 开启熔断时统计在连接上执行的一次操作,连接已损坏(超时、断开)视为失败
+     * @param start 操作开始时间(System.nanoTime),小于0时只统计是否失败,
+     * 用于管道和事务这类耗时随命令条数增长、不能按单条命令判断快慢的操作
+     */
+    private static void record(Jedis jedis, long start) {
+        RedisCircuitBreaker breaker = circuitBreaker;
+        if (breaker != null && null != jedis) {
+            long elapsed = start < 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            breaker.record(elapsed, jedis.getClient().isBroken());
         }
 
-        return jedis;
     }
 
     @Value("${redis.expire.time:0}")
@@ -1362,20 +2145,20 @@ public class RedisCache {
 
     @Value("${redis.addr:127.0.0.1}")
     public void setADDR(String ADDR) {
-        this.ADDR = ADDR;
+        RedisCache.ADDR = ADDR;
     }
 
-    @Value("${redis.port}")
+    @Value("${redis.port:6379}")
     public void setPORT(int PORT) {
-        PORT = PORT;
+        RedisCache.PORT = PORT;
     }
 
     @Value("${redis.auth:nullValue}")
     public void setAUTH(String AUTH) {
         if ("nullValue".equals(AUTH)) {
-            AUTH = null;
+            RedisCache.AUTH = null;
         } else {
-            AUTH = AUTH;
+            RedisCache.AUTH = AUTH;
         }
 
     }
@@ -1390,6 +2173,31 @@ public class RedisCache {
         MAX_IDLE = maxIdle;
     }
 
+    @Value("${redis.pool.min_idle:8}")
+    public void setMinIdle(int minIdle) {
+        MIN_IDLE = minIdle;
+    }
+
+    @Value("${redis.pool.test_on_borrow:false}")
+    public void setTestOnBorrow(boolean testOnBorrow) {
+        TEST_ON_BORROW = testOnBorrow;
+    }
+
+    @Value("${redis.pool.test_while_idle:true}")
+    public void setTestWhileIdle(boolean testWhileIdle) {
+        TEST_WHILE_IDLE = testWhileIdle;
+    }
+
+    @Value("${redis.pool.time_between_eviction_runs:30000}")
+    public void setTimeBetweenEvictionRuns(long timeBetweenEvictionRuns) {
+        TIME_BETWEEN_EVICTION_RUNS = timeBetweenEvictionRuns;
+    }
+
+    @Value("${redis.pool.soft_min_evictable_idle_time:60000}")
+    public void setSoftMinEvictableIdleTime(long softMinEvictableIdleTime) {
+        SOFT_MIN_EVICTABLE_IDLE_TIME = softMinEvictableIdleTime;
+    }
+
     @Value("${redis.pool.max_wait:10000}")
     public void setMaxWait(int maxWait) {
         MAX_WAIT = maxWait;
@@ -1397,15 +2205,80 @@ public class RedisCache {
 
     @Value("${redis.pool.timeout:10000}")
     public void setTIMEOUT(int TIMEOUT) {
-        TIMEOUT = TIMEOUT;
+        RedisCache.TIMEOUT = TIMEOUT;
+    }
+
+    @Value("${redis.circuit.enabled:false}")
+    public void setCircuitEnabled(boolean circuitEnabled) {
+        CIRCUIT_ENABLED = circuitEnabled;
+    }
+
+    @Value("${redis.circuit.operation_timeout:1000}")
+    public void setOperationTimeout(int operationTimeout) {
+        OPERATION_TIMEOUT = operationTimeout;
+    }
+
+    @Value("${redis.circuit.slow_call_threshold:500}")
+    public void setSlowCallThreshold(long slowCallThreshold) {
+        SLOW_CALL_THRESHOLD = slowCallThreshold;
+    }
+
+    @Value("${redis.circuit.window:20}")
+    public void setCircuitWindow(int circuitWindow) {
+        CIRCUIT_WINDOW = circuitWindow;
+    }
+
+    @Value("${redis.circuit.failure_rate:50}")
+    public void setFailureRateThreshold(int failureRateThreshold) {
+        FAILURE_RATE_THRESHOLD = failureRateThreshold;
+    }
+
+    @Value("${redis.circuit.slow_call_rate:50}")
+    public void setSlowCallRateThreshold(int slowCallRateThreshold) {
+        SLOW_CALL_RATE_THRESHOLD = slowCallRateThreshold;
+    }
+
+    @Value("${redis.circuit.probe_interval:1000}")
+    public void setProbeInterval(long probeInterval) {
+        PROBE_INTERVAL = probeInterval;
+    }
+
+    @Value("${redis.pipeline.enabled:false}")
+    public void setPipelineEnabled(boolean pipelineEnabled) {
+        PIPELINE_ENABLED = pipelineEnabled;
+    }
+
+    @Value("${redis.pipeline.connections:4}")
+    public void setPipelineConnections(int pipelineConnections) {
+        PIPELINE_CONNECTIONS = pipelineConnections;
     }
 
     public static class RedisTransaction {
         private Transaction transaction;
+        private Pipeline pipeline;
         private Jedis tranJedis;
 
-        private RedisTransaction(Jedis jedis) {
-            this.tranJedis = jedis;
+        private RedisTransaction() {
+        }
+
+        /**
+         * 第一次使用时从连接池借出连接,之后的命令都在这个连接上执行.
+         * 调用方可能长时间占用连接,熔断统计按每条命令单独计时,不按借出到归还计时
+         */
+        private Jedis jedis() {
+            if (null == this.tranJedis) {
+                this.tranJedis = RedisCache.getJedis(false);
+            }
+
+            return this.tranJedis;
+        }
+
+        private void close() {
+            if (null != this.tranJedis) {
+                RedisCache.release(this.tranJedis);
+                this.tranJedis = null;
+            }
+
         }
 
         public String watch(String prefix, String cacheType, String key) {
@@ -1416,9 +2289,17 @@ public class RedisCache {
             String result = null;
 
             try {
-                if (null != this.tranJedis) {
-                    result = this.tranJedis.watch(new String[]{key});
+                Jedis jedis = this.jedis();
+                if (null != jedis) {
+                    long start = System.nanoTime();
+                    try {
+                        result = jedis.watch(new String[]{key});
+                    } finally {
+                        RedisCache.record(jedis, start);
+                    }
                 }
+            } catch (RedisUnavailableException var0) {
+                throw var0;
             } catch (Exception var4) {
                 RedisCache.log.error("redis监控key存在异常", var4);
             }
@@ -1434,6 +2315,28 @@ public class RedisCache {
             return this.set(RedisCache.generateFullKey(prefix, cacheType, key), value, expireSeconds);
         }
 
+        public Response<String> set(String prefix, String cacheType, String key, byte[] value, int expireSeconds) {
+            return this.set(SafeEncoder.encode(RedisCache.generateFullKey(prefix, cacheType, key)), value, expireSeconds);
+        }
+
+        /**
+         * @param key 已编码好的完整key
+         */
+        public Response<String> set(byte[] key, byte[] value, int expireSeconds) {
+            Response<String> result = null;
+
+            try {
+                result = this.transaction.set(key, value);
+                if (expireSeconds > 0) {
+                    this.transaction.expire(key, expireSeconds);
+                }
+            } catch (Exception var6) {
+                RedisCache.log.error("redis事务中设置单个二进制值失败", var6);
+            }
+
+            return result;
+        }
+
         private Response<String> set(String key, String value, int expireSeconds) {
             Response result = null;
 
@@ -1465,9 +2368,104 @@ public class RedisCache {
             return result;
         }
 
+        public Object eval(String script, List<String> keys, List<byte[]> args) {
+            Object result = null;
+
+            try {
+                //已经借出连接时(watch/multi之后)继续在同一连接上执行
+                if (null == this.tranJedis && RedisCache.autoPipelined()) {
+                    result = RedisCache.evalScriptPipelined(script, keys, args);
+                } else {
+                    Jedis jedis = this.jedis();
+                    if (null != jedis) {
+                        long start = System.nanoTime();
+                        try {
+                            result = RedisCache.evalScript(jedis, script, keys, args);
+                        } finally {
+                            RedisCache.record(jedis, start);
+                        }
+                    }
+                }
+            } catch (RedisUnavailableException var0) {
+                throw var0;
+            } catch (Exception var5) {
+                RedisCache.log.error("redis执行lua脚本失败", var5);
+            }
+
+            return result;
+        }
+
+        /**
+         * 在管道中执行lua脚本,结果在sync之后可用.管道中无法处理NOSCRIPT,所以直接发送脚本全文
+         */
+        public Response<Object> pipelineEval(String script, List<String> keys, List<byte[]> args) {
+            Response<Object> result = null;
+
+            try {
+                result = this.pipeline.eval(SafeEncoder.encode(script),
+                    keys.stream().map(SafeEncoder::encode).collect(Collectors.toList()), args);
+            } catch (Exception var5) {
+                RedisCache.log.error("redis管道中执行lua脚本失败", var5);
+            }
+
+            return result;
+        }
+
+        public void pipelined() {
+            try {
+                this.pipeline = this.jedis().pipelined();
+            } catch (RedisUnavailableException var0) {
+                throw var0;
+            } catch (Exception var2) {
+                RedisCache.log.error("redis开启管道失败", var2);
+            }
+
+        }
+
+        public void sync() {
+            try {
+                this.pipeline.sync();
+            } catch (Exception var2) {
+                RedisCache.log.error("redis管道执行失败", var2);
+            } finally {
+                RedisCache.record(this.tranJedis, -1L);
+            }
+
+        }
+
+        public Response<Long> incrBy(String prefix, String cacheType, String key, long increment) {
+            return this.incrBy(RedisCache.generateFullKey(prefix, cacheType, key), increment);
+        }
+
+        private Response<Long> incrBy(String key, long increment) {
+            Response<Long> result = null;
+
+            try {
+                result = this.transaction.incrBy(key, increment);
+            } catch (Exception var5) {
+                RedisCache.log.error("redis事务中执行incrBy存在异常", var5);
+            }
+
+            return result;
+        }
+
+        public Response<Long> publish(String channel, String msg) {
+            Response<Long> result = null;
+
+            try {
+                result = this.transaction.publish(channel, msg);
+            } catch (Exception var4) {
+                RedisCache.log.error("redis事务中向频道发送消息失败", var4);
+            }
+
+            return result;
+        }
+
         public void multi() {
             try {
-                this.transaction = this.tranJedis.multi();
+                this.transaction = this.jedis().multi();
+            } catch (RedisUnavailableException var0) {
+                throw var0;
             } catch (Exception var2) {
                 RedisCache.log.error("redis开启事务失败", var2);
             }
@@ -1481,6 +2479,8 @@ public class RedisCache {
                 result = this.transaction.exec();
             } catch (Exception var3) {
                 RedisCache.log.error("redis事务执行失败", var3);
+            } finally {
+                RedisCache.record(this.tranJedis, -1L);
             }
 
             return result;
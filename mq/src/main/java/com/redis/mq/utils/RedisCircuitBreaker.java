@@ -0,0 +1,206 @@
+package com.redis.mq.utils;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * @author: xushu
+ * @date: 2018/11/7 10:30
+ * @description: redis熔断器.统计最近windowSize次操作,次数不少于minimumCalls且失败比例或慢操作比例达到阈值时打开,
+ * 打开期间所有操作直接抛出RedisUnavailableException.打开后由后台线程每隔probeInterval探测一次,探测成功后关闭.
+ * 统计窗口是无锁的环形数组,每次记录只有几次原子操作,不会让所有redis操作在同一把锁上排队
+ */
+public class RedisCircuitBreaker implements AutoCloseable {
+
+    private static Logger log = LoggerFactory.getLogger(RedisCircuitBreaker.class);
+
+    private static final int RECORDED = 1;
+    private static final int FAILED = 2;
+    private static final int SLOW = 4;
+
+    public enum State {
+        /**
+         * 正常放行
+         */
+        CLOSED,
+        /**
+         * 直接拒绝,等待后台探测恢复
+         */
+        OPEN
+    }
+
+    private final int windowSize;
+    private final int minimumCalls;
+    /**
+     * 失败比例阈值(0-100)
+     */
+    private final int failureRateThreshold;
+    /**
+     * 慢操作比例阈值(0-100)
+     */
+    private final int slowCallRateThreshold;
+    /**
+     * 超过该耗时的操作视为慢操作(毫秒)
+     */
+    private final long slowCallThreshold;
+    private final BooleanSupplier probe;
+    private final ScheduledExecutorService probeExecutor;
+
+    /**
+     * 最近windowSize次操作的结果,环形覆盖.0表示空位,否则为RECORDED加上FAILED、SLOW标记
+     */
+    private final AtomicIntegerArray outcomes;
+    private final AtomicLong next = new AtomicLong();
+    /**
+     * 窗口中的操作次数、失败次数和慢操作次数,随每个位置的覆盖增减
+     */
+    private final AtomicInteger calls = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicInteger slowCalls = new AtomicInteger();
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param windowSize 统计的最近操作次数
+     * @param minimumCalls 至少统计这么多次操作后才判断是否打开
+     * @param failureRateThreshold 失败比例阈值(百分比)
+     * @param slowCallRateThreshold 慢操作比例阈值(百分比)
+     * @param slowCallThreshold 慢操作耗时(毫秒)
+     * @param probeInterval 打开后探测的间隔(毫秒)
+     * @param probe 探测redis是否恢复,返回true表示恢复
+     */
+    public RedisCircuitBreaker(int windowSize, int minimumCalls, int failureRateThreshold, int slowCallRateThreshold,
+        long slowCallThreshold, long probeInterval, BooleanSupplier probe) {
+        if (windowSize <= 0 || minimumCalls <= 0 || minimumCalls > windowSize) {
+            throw new IllegalArgumentException("require 0 < minimumCalls <= windowSize");
+        }
+        this.windowSize = windowSize;
+        this.minimumCalls = minimumCalls;
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallThreshold = slowCallThreshold;
+        this.probe = probe;
+        this.outcomes = new AtomicIntegerArray(windowSize);
+        this.probeExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "redisMq-circuit-probe");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.probeExecutor.scheduleWithFixedDelay(this::probe, probeInterval, probeInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 操作前检查,打开时直接拒绝
+     * @throws RedisUnavailableException 熔断器打开
+     */
+    public void acquire() {
+        if (state.get() == State.OPEN) {
+            rejected.increment();
+            throw new RedisUnavailableException("redis circuit breaker is open");
+        }
+    }
+
+    /**
+     * 放行并执行操作,记录耗时和是否失败
+     */
+    public <T> T execute(Callable<T> operation) throws Exception {
+        acquire();
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            T result = operation.call();
+            failed = false;
+            return result;
+        } finally {
+            record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), failed);
+        }
+    }
+
+    /**
+     * 记录一次操作的结果
+     * @param elapsedMillis 耗时
+     * @param failed 是否因为连接失败、超时等redis不可用的原因失败
+     */
+    public void record(long elapsedMillis, boolean failed) {
+        if (state.get() == State.OPEN) {
+            //打开之前已经放行的操作,结果不再统计
+            return;
+        }
+        int outcome = RECORDED | (failed ? FAILED : 0) | (elapsedMillis > slowCallThreshold ? SLOW : 0);
+        int slot = (int) ((next.getAndIncrement() & Long.MAX_VALUE) % windowSize);
+        int evicted = outcomes.getAndSet(slot, outcome);
+        int callCount = (evicted & RECORDED) == 0 ? calls.incrementAndGet() : calls.get();
+        int failureCount = failures.addAndGet(count(outcome, FAILED) - count(evicted, FAILED));
+        int slowCallCount = slowCalls.addAndGet(count(outcome, SLOW) - count(evicted, SLOW));
+        if (callCount >= minimumCalls && (failureCount * 100 >= failureRateThreshold * callCount
+            || slowCallCount * 100 >= slowCallRateThreshold * callCount)
+            && state.compareAndSet(State.CLOSED, State.OPEN)) {
+            log.error("redis熔断器打开,最近{}次操作失败{}次,慢操作{}次", callCount, failureCount, slowCallCount);
+        }
+    }
+
+    private static int count(int outcome, int flag) {
+        return (outcome & flag) == 0 ? 0 : 1;
+    }
+
+    private void probe() {
+        if (state.get() != State.OPEN) {
+            return;
+        }
+        boolean recovered;
+        try {
+            recovered = probe.getAsBoolean();
+        } catch (Exception e) {
+            recovered = false;
+        }
+        if (recovered) {
+            reset();
+        }
+    }
+
+    /**
+     * 清空统计并关闭熔断器.逐个位置清空并扣除计数,与打开前放行的操作并发记录时计数仍与窗口一致
+     */
+    private void reset() {
+        for (int slot = 0; slot < windowSize; slot++) {
+            int evicted = outcomes.getAndSet(slot, 0);
+            if ((evicted & RECORDED) != 0) {
+                calls.decrementAndGet();
+                failures.addAndGet(-count(evicted, FAILED));
+                slowCalls.addAndGet(-count(evicted, SLOW));
+            }
+        }
+        state.set(State.CLOSED);
+        log.warn("redis已恢复,熔断器关闭");
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    /**
+     * 打开期间被拒绝的操作次数
+     */
+    public long rejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * 停止后台探测
+     */
+    @Override
+    public void close() {
+        probeExecutor.shutdownNow();
+    }
+}
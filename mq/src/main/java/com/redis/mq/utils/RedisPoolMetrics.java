@@ -0,0 +1,80 @@
+package com.redis.mq.utils;
+
+/**
+ * @author: xushu
+ * @date: 2018/11/6 14:20
+ * @description: 连接池快照,用于根据实际使用情况调整redis.pool.*配置.
+ * 借连接等待时间接近max_wait或借连接失败次数增长时说明max_active不够,空闲连接长期接近max_idle说明可以调小
+ */
+public class RedisPoolMetrics {
+    /**
+     * 已借出的连接数
+     */
+    private final int active;
+    /**
+     * 池中空闲的连接数
+     */
+    private final int idle;
+    /**
+     * 正在等待借连接的线程数
+     */
+    private final int waiters;
+    /**
+     * 最近借连接的平均等待时间(毫秒)
+     */
+    private final long meanBorrowWaitMillis;
+    /**
+     * 借连接的最长等待时间(毫秒)
+     */
+    private final long maxBorrowWaitMillis;
+    /**
+     * 借连接失败(等待超时或创建连接失败)的次数
+     */
+    private final long borrowFailures;
+
+    public RedisPoolMetrics(int active, int idle, int waiters, long meanBorrowWaitMillis, long maxBorrowWaitMillis,
+        long borrowFailures) {
+        this.active = active;
+        this.idle = idle;
+        this.waiters = waiters;
+        this.meanBorrowWaitMillis = meanBorrowWaitMillis;
+        this.maxBorrowWaitMillis = maxBorrowWaitMillis;
+        this.borrowFailures = borrowFailures;
+    }
+
+    public int getActive() {
+        return active;
+    }
+
+    public int getIdle() {
+        return idle;
+    }
+
+    public int getWaiters() {
+        return waiters;
+    }
+
+    public long getMeanBorrowWaitMillis() {
+        return meanBorrowWaitMillis;
+    }
+
+    public long getMaxBorrowWaitMillis() {
+        return maxBorrowWaitMillis;
+    }
+
+    public long getBorrowFailures() {
+        return borrowFailures;
+    }
+
+    @Override
+    public String toString() {
+        return "RedisPoolMetrics{" +
+            "active=" + active +
+            ", idle=" + idle +
+            ", waiters=" + waiters +
+            ", meanBorrowWaitMillis=" + meanBorrowWaitMillis +
+            ", maxBorrowWaitMillis=" + maxBorrowWaitMillis +
+            ", borrowFailures=" + borrowFailures +
+            '}';
+    }
+}
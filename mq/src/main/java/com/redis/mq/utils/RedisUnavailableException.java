@@ -0,0 +1,15 @@
+package com.redis.mq.utils;
+
+/**
+ * @author: xushu
+ * @date: 2018/11/7 10:20
+ * @description: 熔断器打开期间redis操作被直接拒绝,不再等待连接和超时
+ */
+public class RedisUnavailableException extends RuntimeException {
+
+    private static final long serialVersionUID = 4392117305818830472L;
+
+    public RedisUnavailableException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,19 @@
+package com.redis.mq.utils;
+
+/**
+ * @author: xushu
+ * @date: 2018/10/24 16:20
+ * @description: 序列化或反序列化失败
+ */
+public class SerializationException extends RuntimeException {
+
+    private static final long serialVersionUID = -2478519327683124756L;
+
+    public SerializationException(String message) {
+        super(message);
+    }
+
+    public SerializationException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,25 @@
+package com.redis.mq.utils;
+
+/**
+ * @author: xushu
+ * @date: 2018/10/24 16:20
+ * @description: RedisCache中对象值的序列化方式
+ */
+public interface Serializer {
+
+    /**
+     * 序列化一个对象
+     * @param obj 可以为null
+     * @return
+     * @throws SerializationException 对象不支持序列化时
+     */
+    byte[] serialize(Object obj);
+
+    /**
+     * 反序列化
+     * @param bytes
+     * @return
+     * @throws SerializationException 数据格式错误时
+     */
+    Object deserialize(byte[] bytes);
+}
@@ -1,48 +1,53 @@
 package com.redis.mq.utils;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-
 public class UtilSerialize {
+
+	/**
+	 * 当前使用的序列化方式,默认为BinarySerializer
+	 */
+	private static volatile Serializer serializer = new BinarySerializer();
+
+	private static final JavaSerializer JAVA_SERIALIZER = new JavaSerializer();
+
+	/**
+	 * 
+	 * <p>Title: setSerializer</p>
+	 * <p>Description: 替换序列化方式,已写入的jdk序列化数据总是可以读取</p>
+	 * @param serializer
+	 */
+	public static void setSerializer(Serializer serializer) {
+		UtilSerialize.serializer = serializer;
+	}
+
+	public static Serializer getSerializer() {
+		return serializer;
+	}
+
 	/**
 	 * 
 	 * <p>Title: ObjTOSerialize</p>
 	 * <p>Description: 序列化一个对象</p>
 	 * @param obj
 	 * @return
+	 * @throws SerializationException 对象不支持序列化时
 	 * @author guangshuai.wang
 	 */
 	public static byte[] serialize(Object obj){
-		ObjectOutputStream oos = null;
-		ByteArrayOutputStream byteOut = null;
-		try{
-			byteOut = new ByteArrayOutputStream();
-			oos = new ObjectOutputStream(byteOut);
-			oos.writeObject(obj);
-			byte[] bytes = byteOut.toByteArray();
-			return bytes;
-		}catch (Exception e) {
-			return null;
-		}
+		return serializer.serialize(obj);
 	}
 	/**
 	 * 
 	 * <p>Title: unSerialize</p>
-	 * <p>Description: 反序列化</p>
+	 * <p>Description: 反序列化,根据数据开头的类型标记识别旧的jdk序列化数据</p>
 	 * @param bytes
 	 * @return
+	 * @throws SerializationException 数据格式错误时
 	 * @author guangshuai.wang
 	 */
 	public static Object unSerialize(byte[] bytes){
-		ByteArrayInputStream in = null;
-		try{
-			in = new ByteArrayInputStream(bytes);
-			ObjectInputStream objIn = new ObjectInputStream(in);
-			return objIn.readObject();
-		}catch (Exception e) {
-			return null;
+		if (JavaSerializer.isJavaSerialized(bytes)) {
+			return JAVA_SERIALIZER.deserialize(bytes);
 		}
+		return serializer.deserialize(bytes);
 	}
 }
@@ -0,0 +1,94 @@
+package com.redis.mq.benchmark;
+
+import com.redis.mq.mymq.Producer;
+import com.redis.mq.mymq.PublishMode;
+import com.redis.mq.mymq.RedisMessageModel;
+import com.redis.mq.utils.RedisCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * @author: xushu
+ * @date: 2018/10/15 10:12
+ * @description: 逐条发布与批量发布的吞吐对比,需要本地redis(127.0.0.1:6379)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ProducerBenchmark {
+
+    private static final int BATCH_SIZE = 1000;
+    private static final String TOPIC = "benchmark";
+
+    private Producer transactionProducer;
+    private Producer scriptProducer;
+    private List<RedisMessageModel> messages;
+
+    @Setup
+    public void setUp() {
+        new RedisCache().setADDR("127.0.0.1");
+        transactionProducer = new Producer(TOPIC);
+        scriptProducer = new Producer(TOPIC, PublishMode.SCRIPT);
+        messages = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            RedisMessageModel message = new RedisMessageModel();
+            message.setTopic(TOPIC);
+            message.setContent("benchmark message " + i);
+            messages.add(message);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int publishLoop() {
+        int published = 0;
+        for (RedisMessageModel message : messages) {
+            if (transactionProducer.publish(message)) {
+                published++;
+            }
+        }
+        return published;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int publishScriptLoop() {
+        int published = 0;
+        for (RedisMessageModel message : messages) {
+            if (scriptProducer.publish(message)) {
+                published++;
+            }
+        }
+        return published;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public List<Integer> publishAll() {
+        return transactionProducer.publishAll(messages);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ProducerBenchmark.class.getSimpleName()).build()).run();
+    }
+}
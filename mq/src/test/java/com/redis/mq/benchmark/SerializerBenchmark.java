@@ -0,0 +1,80 @@
+package com.redis.mq.benchmark;
+
+import com.redis.mq.utils.BinarySerializer;
+import com.redis.mq.utils.JavaSerializer;
+import com.redis.mq.utils.Serializer;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * @author: xushu
+ * @date: 2018/10/24 16:20
+ * @description: jdk序列化与BinarySerializer的对比,不需要redis.序列化后的字节数在setUp中打印
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializerBenchmark {
+
+    @Param({"java", "binary"})
+    private String serializerName;
+
+    private Serializer serializer;
+    private Map<String, Object> value;
+    private byte[] bytes;
+
+    @Setup
+    public void setUp() {
+        serializer = "java".equals(serializerName) ? new JavaSerializer() : new BinarySerializer();
+        value = new HashMap<>();
+        value.put("id", 10086L);
+        value.put("name", "benchmark user");
+        value.put("createTime", new Date());
+        value.put("score", 98.5D);
+        value.put("enabled", Boolean.TRUE);
+        List<String> tags = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            tags.add("tag" + i);
+        }
+        value.put("tags", tags);
+        bytes = serializer.serialize(value);
+        System.out.println(serializerName + " serialized size: " + bytes.length + " bytes");
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return serializer.serialize(value);
+    }
+
+    @Benchmark
+    public Object deserialize() {
+        return serializer.deserialize(bytes);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(SerializerBenchmark.class.getSimpleName()).build()).run();
+    }
+}
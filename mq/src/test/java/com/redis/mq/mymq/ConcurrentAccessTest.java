@@ -0,0 +1,108 @@
+package com.redis.mq.mymq;
+
+import com.redis.mq.utils.RedisCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author: xushu
+ * @date: 2018/11/2 10:40
+ * @description: 多个线程共享同一个Producer和Consumer的压力测试,需要本地redis(127.0.0.1:6379),连不上时跳过.
+ * 每条消息只能被读取一次,内容与发布时一致,不能串到其他消息的key上
+ */
+public class ConcurrentAccessTest {
+
+    private static final int THREADS = 8;
+    private static final int MESSAGES_PER_THREAD = 500;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        new RedisCache().setADDR("127.0.0.1");
+        Assume.assumeTrue("redis is not available", RedisCache.getCurrentTimeMillisFromRedis() != null);
+        executor = Executors.newFixedThreadPool(THREADS * 2);
+    }
+
+    @After
+    public void tearDown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void sharedProducerAndConsumer() throws Exception {
+        String topic = "stress-" + System.nanoTime();
+        Producer producer = new Producer(topic, PublishMode.SCRIPT);
+        Consumer consumer = new Consumer(topic, "stress");
+        //第一次访问时从最新的消息开始读取,先确定读取位置
+        assertEquals(0, consumer.unreadMessages());
+
+        int total = THREADS * MESSAGES_PER_THREAD;
+        Set<String> received = ConcurrentHashMap.newKeySet();
+        Set<Integer> receivedIds = ConcurrentHashMap.newKeySet();
+        AtomicInteger duplicates = new AtomicInteger();
+        AtomicInteger published = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int thread = t;
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < MESSAGES_PER_THREAD; i++) {
+                    RedisMessageModel message = new RedisMessageModel();
+                    message.setTopic(topic);
+                    message.setKey("thread-" + thread);
+                    message.setContent(thread + "-" + i);
+                    if (producer.publish(message)) {
+                        published.incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+            futures.add(executor.submit(() -> {
+                start.await();
+                long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(60);
+                while (received.size() < total && System.currentTimeMillis() < deadline) {
+                    for (RedisMessageModel message : consumer.poll(50, 100, TimeUnit.MILLISECONDS)) {
+                        if (!received.add(message.getContent()) || !receivedIds.add(message.getId())) {
+                            duplicates.incrementAndGet();
+                        }
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(2, TimeUnit.MINUTES);
+        }
+
+        assertEquals(total, published.get());
+        assertEquals(0, duplicates.get());
+        assertEquals(total, received.size());
+        for (int thread = 0; thread < THREADS; thread++) {
+            for (int i = 0; i < MESSAGES_PER_THREAD; i++) {
+                assertTrue("missing " + thread + "-" + i, received.contains(thread + "-" + i));
+            }
+        }
+    }
+}
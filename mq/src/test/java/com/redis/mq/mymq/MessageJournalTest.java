@@ -0,0 +1,197 @@
+package com.redis.mq.mymq;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author: xushu
+ * @date: 2018/11/9 14:20
+ * @description: 本地预写日志的测试,不需要redis.
+ * 每条测试消息固定20字节,加上16字节的记录头每条记录36字节
+ */
+public class MessageJournalTest {
+
+    private static final int RECORD_SIZE = 36;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("journal").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void appendReadAcknowledge() throws IOException {
+        MessageJournal journal = new MessageJournal(directory, 1024);
+        for (int i = 0; i < 3; i++) {
+            journal.append(i, 60 + i, payload(i));
+        }
+        assertEquals(3, journal.pending());
+
+        MessageJournal.Batch batch = journal.read(10);
+        assertEquals(3, batch.entries.size());
+        for (int i = 0; i < 3; i++) {
+            MessageJournal.Entry entry = batch.entries.get(i);
+            assertEquals(i, entry.partition);
+            assertEquals(60 + i, entry.seconds);
+            assertEquals(text(i), new String(entry.payload, StandardCharsets.UTF_8));
+        }
+        //读取不移动checkpoint
+        assertEquals(3, journal.read(10).entries.size());
+
+        journal.acknowledge(batch);
+        assertEquals(0, journal.pending());
+        assertTrue(journal.read(10).entries.isEmpty());
+        journal.close();
+    }
+
+    @Test
+    public void replayUnsentAfterReopen() throws IOException {
+        MessageJournal journal = new MessageJournal(directory, 1024);
+        for (int i = 0; i < 5; i++) {
+            journal.append(0, 0, payload(i));
+        }
+        journal.acknowledge(journal.read(2));
+        journal.close();
+
+        journal = new MessageJournal(directory, 1024);
+        assertEquals(3, journal.pending());
+        journal.append(0, 0, payload(5));
+        assertEquals(expected(2, 3, 4, 5), texts(journal.read(10)));
+        journal.close();
+    }
+
+    @Test
+    public void rollSegmentsAndDeleteSent() throws IOException {
+        //每个段只能放下一条记录
+        MessageJournal journal = new MessageJournal(directory, RECORD_SIZE + 4);
+        for (int i = 0; i < 5; i++) {
+            journal.append(0, 0, payload(i));
+        }
+        assertEquals(5, segmentFiles());
+
+        MessageJournal.Batch batch = journal.read(3);
+        assertEquals(expected(0, 1, 2), texts(batch));
+        journal.acknowledge(batch);
+        assertEquals(2, journal.pending());
+        assertEquals(3, segmentFiles());
+
+        journal.acknowledge(journal.read(10));
+        assertEquals(0, journal.pending());
+        assertEquals(1, segmentFiles());
+        journal.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectRecordLargerThanSegment() throws IOException {
+        MessageJournal journal = new MessageJournal(directory, RECORD_SIZE - 1);
+        journal.append(0, 0, payload(0));
+    }
+
+    @Test
+    public void ignoreTornRecordOnRecovery() throws IOException {
+        MessageJournal journal = new MessageJournal(directory, 1024);
+        for (int i = 0; i < 3; i++) {
+            journal.append(0, 0, payload(i));
+        }
+        journal.close();
+        //最后一条记录没有完整写入
+        corrupt(0, RECORD_SIZE * 2);
+
+        journal = new MessageJournal(directory, 1024);
+        assertEquals(2, journal.pending());
+        //新记录覆盖损坏的记录
+        journal.append(0, 0, payload(3));
+        assertEquals(3, journal.pending());
+        MessageJournal.Batch batch = journal.read(10);
+        assertEquals(expected(0, 1, 3), texts(batch));
+        journal.acknowledge(batch);
+        assertEquals(0, journal.pending());
+        journal.close();
+    }
+
+    @Test
+    public void skippedCorruptRecordsLeavePending() throws IOException {
+        //每个段放两条记录
+        MessageJournal journal = new MessageJournal(directory, RECORD_SIZE * 2 + 4);
+        for (int i = 0; i < 4; i++) {
+            journal.append(0, 0, payload(i));
+        }
+        assertEquals(4, journal.pending());
+        //第一个段的第一条记录损坏,读取时跳过整个段的剩余部分
+        corrupt(0, 0);
+
+        MessageJournal.Batch batch = journal.read(10);
+        assertEquals(expected(2, 3), texts(batch));
+        journal.acknowledge(batch);
+        assertEquals(0, journal.pending());
+        assertTrue(journal.read(10).entries.isEmpty());
+        journal.close();
+    }
+
+    private static byte[] payload(int i) {
+        return text(i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(int i) {
+        return String.format("message-%012d", i);
+    }
+
+    private static List<String> expected(int... ids) {
+        List<String> texts = new ArrayList<>();
+        for (int id : ids) {
+            texts.add(text(id));
+        }
+        return texts;
+    }
+
+    private static List<String> texts(MessageJournal.Batch batch) {
+        List<String> texts = new ArrayList<>();
+        for (MessageJournal.Entry entry : batch.entries) {
+            texts.add(new String(entry.payload, StandardCharsets.UTF_8));
+        }
+        return texts;
+    }
+
+    private int segmentFiles() {
+        String[] names = directory.list((dir, name) -> name.endsWith(".journal"));
+        return names == null ? 0 : names.length;
+    }
+
+    /**
+     * 修改记录中消息的最后一个字节,使crc校验失败
+     */
+    private void corrupt(int segment, int position) throws IOException {
+        File file = new File(directory, String.format("%010d", segment) + ".journal");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long offset = position + RECORD_SIZE - 1;
+            raf.seek(offset);
+            int value = raf.read();
+            raf.seek(offset);
+            raf.write(value ^ 0xFF);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.redis.mq.utils;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author: xushu
+ * @date: 2018/11/7 16:20
+ * @description: RedisCache开启熔断后的测试.本地起一个按RESP协议应答的假redis,注入延迟和断连,
+ * 通过RedisCache的真实调用路径(连接池、借出归还、事务连接)驱动熔断器
+ */
+public class RedisCacheCircuitBreakerTest {
+
+    private static final int OPERATION_TIMEOUT = 300;
+    private static final long SLOW_CALL_THRESHOLD = 50;
+    private static final long PROBE_INTERVAL = 100;
+    private static final int WINDOW = 10;
+
+    private FakeRedisServer server;
+    private RedisCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new FakeRedisServer();
+        cache = new RedisCache();
+        cache.setADDR("127.0.0.1");
+        cache.setPORT(server.port());
+        cache.setMinIdle(0);
+        cache.setCircuitEnabled(true);
+        cache.setOperationTimeout(OPERATION_TIMEOUT);
+        cache.setSlowCallThreshold(SLOW_CALL_THRESHOLD);
+        cache.setCircuitWindow(WINDOW);
+        cache.setFailureRateThreshold(50);
+        cache.setSlowCallRateThreshold(50);
+        cache.setProbeInterval(PROBE_INTERVAL);
+        cache.destroy();
+        cache.afterPropertiesSet();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        cache.destroy();
+        server.close();
+        //恢复默认配置,同一个JVM中的其他测试连接本地redis
+        cache.setPORT(6379);
+        cache.setMinIdle(8);
+        cache.setCircuitEnabled(false);
+        cache.setOperationTimeout(1000);
+        cache.setSlowCallThreshold(500);
+        cache.setCircuitWindow(20);
+        cache.setProbeInterval(1000);
+    }
+
+    @Test
+    public void opensOnSlowCommandsAndRecovers() throws Exception {
+        for (int i = 0; i < WINDOW; i++) {
+            assertEquals(FakeRedisServer.VALUE, RedisCache.get("test", "key"));
+        }
+        assertEquals(RedisCircuitBreaker.State.CLOSED, RedisCache.circuitState());
+
+        server.latency = SLOW_CALL_THRESHOLD * 2;
+        for (int i = 0; i < WINDOW / 2; i++) {
+            assertEquals(FakeRedisServer.VALUE, RedisCache.get("test", "key"));
+        }
+        assertEquals(RedisCircuitBreaker.State.OPEN, RedisCache.circuitState());
+        assertRejectedImmediately();
+
+        server.latency = 0;
+        awaitClosed();
+        assertEquals(FakeRedisServer.VALUE, RedisCache.get("test", "key"));
+    }
+
+    @Test
+    public void opensOnConnectionFaults() throws Exception {
+        server.down = true;
+        for (int i = 0; i < WINDOW / 2; i++) {
+            //连接被断开,与未开启熔断时一样返回null
+            assertNull(RedisCache.get("test", "key"));
+        }
+        assertEquals(RedisCircuitBreaker.State.OPEN, RedisCache.circuitState());
+        assertRejectedImmediately();
+
+        //探测失败时保持打开
+        Thread.sleep(PROBE_INTERVAL * 3);
+        assertEquals(RedisCircuitBreaker.State.OPEN, RedisCache.circuitState());
+
+        server.down = false;
+        awaitClosed();
+        assertEquals(FakeRedisServer.VALUE, RedisCache.get("test", "key"));
+    }
+
+    @Test
+    public void longHeldConnectionIsNotSlow() {
+        for (int i = 0; i < WINDOW; i++) {
+            Object result = RedisCache.execOnSameRedisConn(transaction -> {
+                Object reply = transaction.eval("return 1", Collections.emptyList(), Collections.emptyList());
+                //调用方占用连接做其他事情,只统计命令本身的耗时
+                pause(SLOW_CALL_THRESHOLD * 2);
+                return reply;
+            });
+            assertEquals(1L, result);
+        }
+        assertEquals(RedisCircuitBreaker.State.CLOSED, RedisCache.circuitState());
+    }
+
+    private static void assertRejectedImmediately() {
+        long start = System.nanoTime();
+        try {
+            RedisCache.get("test", "key");
+            fail("expected RedisUnavailableException");
+        } catch (RedisUnavailableException e) {
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < SLOW_CALL_THRESHOLD);
+        }
+    }
+
+    private static void awaitClosed() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + PROBE_INTERVAL * 50;
+        while (RedisCache.circuitState() == RedisCircuitBreaker.State.OPEN && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(RedisCircuitBreaker.State.CLOSED, RedisCache.circuitState());
+    }
+
+    private static void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 按RESP协议应答的假redis.GET返回固定值,SCRIPT LOAD返回固定sha,EVAL/EVALSHA返回1,PING返回PONG,其他命令返回OK.
+     * latency注入每条命令的延迟,down为true时收到命令直接断开连接
+     */
+    private static class FakeRedisServer {
+        private static final String VALUE = "value";
+        private static final String SHA = "e0e1f9fabfc9d4800c877a703b823ac0578ff8db";
+
+        private final ServerSocket serverSocket;
+        private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<>());
+        private volatile long latency;
+        private volatile boolean down;
+
+        private FakeRedisServer() throws IOException {
+            this.serverSocket = new ServerSocket(0);
+            Thread acceptor = new Thread(this::accept, "fake-redis-acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        private int port() {
+            return serverSocket.getLocalPort();
+        }
+
+        private void accept() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    sockets.add(socket);
+                    Thread handler = new Thread(() -> serve(socket), "fake-redis-connection");
+                    handler.setDaemon(true);
+                    handler.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void serve(Socket socket) {
+            try (Socket connection = socket) {
+                InputStream in = new BufferedInputStream(connection.getInputStream());
+                OutputStream out = connection.getOutputStream();
+                List<String> command;
+                while ((command = readCommand(in)) != null) {
+                    if (down) {
+                        return;
+                    }
+                    if (latency > 0) {
+                        Thread.sleep(latency);
+                    }
+                    out.write(reply(command.get(0).toUpperCase()).getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                //客户端断开或服务关闭
+            }
+        }
+
+        private static String reply(String name) {
+            switch (name) {
+                case "GET":
+                    return "$" + VALUE.length() + "\r\n" + VALUE + "\r\n";
+                case "SCRIPT":
+                    return "$" + SHA.length() + "\r\n" + SHA + "\r\n";
+                case "EVAL":
+                case "EVALSHA":
+                    return ":1\r\n";
+                case "PING":
+                    return "+PONG\r\n";
+                default:
+                    return "+OK\r\n";
+            }
+        }
+
+        /**
+         * 读取一条命令 *N\r\n 加上N个 $len\r\n参数\r\n
+         * @return 命令和参数,连接关闭时返回null
+         */
+        private static List<String> readCommand(InputStream in) throws IOException {
+            String header = readLine(in);
+            if (header == null) {
+                return null;
+            }
+            int count = Integer.parseInt(header.substring(1));
+            List<String> command = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String lengthLine = readLine(in);
+                if (lengthLine == null) {
+                    return null;
+                }
+                byte[] argument = new byte[Integer.parseInt(lengthLine.substring(1))];
+                int read = 0;
+                while (read < argument.length) {
+                    int n = in.read(argument, read, argument.length - read);
+                    if (n < 0) {
+                        return null;
+                    }
+                    read += n;
+                }
+                readLine(in);
+                command.add(new String(argument, StandardCharsets.UTF_8));
+            }
+            return command;
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1) {
+                if (c == '\r') {
+                    in.read();
+                    return line.toString();
+                }
+                line.append((char) c);
+            }
+            return null;
+        }
+
+        private void close() throws IOException {
+            serverSocket.close();
+            synchronized (sockets) {
+                for (Socket socket : sockets) {
+                    socket.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.redis.mq.utils;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author: xushu
+ * @date: 2018/11/7 15:10
+ * @description: 熔断器测试,用注入延迟和故障的本地假redis代替真实redis
+ */
+public class RedisCircuitBreakerTest {
+
+    private static final long SLOW_CALL_THRESHOLD = 50;
+    private static final long PROBE_INTERVAL = 100;
+
+    private FakeRedis redis;
+    private RedisCircuitBreaker breaker;
+
+    @Before
+    public void setUp() {
+        redis = new FakeRedis();
+        breaker = new RedisCircuitBreaker(10, 5, 50, 50, SLOW_CALL_THRESHOLD, PROBE_INTERVAL, redis::ping);
+    }
+
+    @After
+    public void tearDown() {
+        breaker.close();
+    }
+
+    @Test
+    public void opensOnSlowCallsAndRejectsImmediately() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            assertEquals("OK", breaker.execute(redis::get));
+        }
+        assertEquals(RedisCircuitBreaker.State.CLOSED, breaker.getState());
+
+        redis.latency = SLOW_CALL_THRESHOLD * 2;
+        for (int i = 0; i < 5; i++) {
+            breaker.execute(redis::get);
+        }
+        assertEquals(RedisCircuitBreaker.State.OPEN, breaker.getState());
+
+        long start = System.nanoTime();
+        try {
+            breaker.execute(redis::get);
+            fail("expected RedisUnavailableException");
+        } catch (RedisUnavailableException e) {
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < SLOW_CALL_THRESHOLD);
+        }
+        assertEquals(1, breaker.rejectedCount());
+    }
+
+    @Test
+    public void opensOnFailuresAndRecoversAfterProbe() throws Exception {
+        redis.down = true;
+        for (int i = 0; i < 5; i++) {
+            try {
+                breaker.execute(redis::get);
+            } catch (IllegalStateException e) {
+                //假redis不可用
+            }
+        }
+        assertEquals(RedisCircuitBreaker.State.OPEN, breaker.getState());
+
+        //探测失败时保持打开
+        Thread.sleep(PROBE_INTERVAL * 3);
+        assertEquals(RedisCircuitBreaker.State.OPEN, breaker.getState());
+
+        redis.down = false;
+        long deadline = System.currentTimeMillis() + PROBE_INTERVAL * 20;
+        while (breaker.getState() == RedisCircuitBreaker.State.OPEN && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(RedisCircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals("OK", breaker.execute(redis::get));
+    }
+
+    /**
+     * 可以注入延迟和故障的假redis
+     */
+    private static class FakeRedis {
+        private volatile long latency;
+        private volatile boolean down;
+
+        private String get() throws InterruptedException {
+            Thread.sleep(latency);
+            if (down) {
+                throw new IllegalStateException("connection refused");
+            }
+            return "OK";
+        }
+
+        private boolean ping() {
+            return !down;
+        }
+    }
+}